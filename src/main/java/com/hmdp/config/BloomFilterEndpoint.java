@@ -0,0 +1,27 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// 运维端点： GET /actuator/bloom 查看布隆过滤器的大小和误判率
+// 手动扩容重建在BloomFilterRebuildEndpoint， 只通过jmx暴露
+@Component
+@Endpoint(id = "bloom")
+public class BloomFilterEndpoint {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @ReadOperation
+    public Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        cacheClient.bloomFilters().forEach((keyPrefix, bloomFilter) -> stats.put(keyPrefix, bloomFilter.stats()));
+        return stats;
+    }
+}
@@ -0,0 +1,30 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.jmx.annotation.JmxEndpoint;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+// 运维端点： 数据量涨了以后手动扩容重建布隆过滤器
+// 重建要全表扫描id， 还会让所有节点重新加载， 所以只通过jmx暴露， 不走http
+@Component
+@JmxEndpoint(id = "bloomrebuild")
+public class BloomFilterRebuildEndpoint {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @WriteOperation
+    public boolean rebuild(@Selector String keyPrefix) {
+        RedisBloomFilter bloomFilter = cacheClient.bloomFilters().get(keyPrefix);
+        if (bloomFilter == null) {
+            return false;
+        }
+        bloomFilter.rebuildAsync();
+        return true;
+    }
+}
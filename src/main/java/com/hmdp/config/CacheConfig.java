@@ -0,0 +1,23 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+@Configuration
+public class CacheConfig {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    // 把配置文件里的缓存策略注册到CacheClient
+    @PostConstruct
+    public void registerPolicies() {
+        cacheProperties.getPolicies().forEach(cacheClient::registerPolicy);
+    }
+}
@@ -0,0 +1,23 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+// 运维端点： GET /actuator/cache 查看各个key前缀在本地缓存和redis上的命中情况
+@Component
+@Endpoint(id = "cache")
+public class CacheEndpoint {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @ReadOperation
+    public Map<String, Map<String, Long>> stats() {
+        return cacheClient.stats();
+    }
+}
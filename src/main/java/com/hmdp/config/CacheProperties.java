@@ -0,0 +1,19 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CachePolicy;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// application.yaml里 hmdp.cache 下面的配置
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    // 各个key前缀的缓存策略
+    private List<CachePolicy> policies = new ArrayList<>();
+}
@@ -24,7 +24,7 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/login",
                         "/blog/hot",
                         "/shop/**",
-                        "/shop-type/**",
+                        "/shop-type/list",
                         "/upload/**",
                         "/voucher/**"
                 ).order(1);
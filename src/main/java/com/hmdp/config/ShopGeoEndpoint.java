@@ -0,0 +1,23 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.ShopGeoIndex;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.jmx.annotation.JmxEndpoint;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+// 运维端点： 从数据库全量重建shop:geo:{typeId}， 已经在重建就返回false
+// 要全表扫描， 只通过jmx暴露， 不走http
+@Component
+@JmxEndpoint(id = "shopgeo")
+public class ShopGeoEndpoint {
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @WriteOperation
+    public boolean rebuild() {
+        return shopGeoIndex.rebuildAsync();
+    }
+}
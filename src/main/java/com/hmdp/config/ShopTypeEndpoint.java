@@ -0,0 +1,48 @@
+package com.hmdp.config;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.IShopTypeService;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.jmx.annotation.JmxEndpoint;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+// 运维端点： 新增、修改、删除店铺类型， 改完所有节点都会重新加载类型列表
+// 类型是全局的， 项目里没有管理员角色， 所以只通过jmx暴露， 不走http
+@Component
+@JmxEndpoint(id = "shoptype")
+public class ShopTypeEndpoint {
+
+    @Resource
+    private IShopTypeService typeService;
+
+    @WriteOperation
+    public Result save(String name, String icon, Integer sort) {
+        ShopType shopType = new ShopType();
+        shopType.setName(name);
+        shopType.setIcon(icon);
+        shopType.setSort(sort);
+        return typeService.saveType(shopType);
+    }
+
+    // 没传的字段不修改
+    @WriteOperation
+    public Result update(@Selector Long id, @Nullable String name, @Nullable String icon, @Nullable Integer sort) {
+        ShopType shopType = new ShopType();
+        shopType.setId(id);
+        shopType.setName(name);
+        shopType.setIcon(icon);
+        shopType.setSort(sort);
+        return typeService.updateType(shopType);
+    }
+
+    @DeleteOperation
+    public Result delete(@Selector Long id) {
+        return typeService.deleteType(id);
+    }
+}
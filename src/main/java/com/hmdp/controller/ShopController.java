@@ -2,14 +2,19 @@ package com.hmdp.controller;
 
 
 import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -26,6 +31,9 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Value("${hmdp.cache.shop-gzip:false}")
+    private boolean shopGzipEnabled;
+
     /**
      * 根据id查询商铺信息
      *
@@ -33,10 +41,34 @@ public class ShopController {
      * @return 商铺详情数据
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
+    public Result queryShopById(@PathVariable("id") Long id, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // 开启了gzip缓存， 并且客户端支持gzip， 直接把缓存里压缩好的响应体写出去， 不经过任何对象转换
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (shopGzipEnabled && StrUtil.containsIgnoreCase(acceptEncoding, "gzip")) {
+            byte[] gzip = shopService.queryGzipById(id);
+            if (gzip != null) {
+                response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+                response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+                response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+                response.setContentLength(gzip.length);
+                response.getOutputStream().write(gzip);
+                return null;
+            }
+        }
         return shopService.queryById(id);
     }
 
+    /**
+     * 根据id查询商铺信息（异步）， 等待redis和缓存重建的时候不占用tomcat线程
+     *
+     * @param id 商铺id
+     * @return 商铺详情数据
+     */
+    @GetMapping("/async/{id}")
+    public CompletableFuture<Result> queryShopByIdAsync(@PathVariable("id") Long id) {
+        return shopService.queryByIdAsync(id);
+    }
+
     /**
      * 新增商铺信息
      *
@@ -45,10 +77,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库， 并加入布隆过滤器
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -69,6 +99,8 @@ public class ShopController {
      *
      * @param typeId  商铺类型
      * @param current 页码
+     * @param cursor 游标， 传了（第一页传空字符串）就按游标翻页， 忽略current
+     * @param sort 没有经纬度的时候的排序： score评分最高 sold销量最高 price最便宜 comments评论最多
      * @return 商铺列表
      */
     @GetMapping("/of/type")
@@ -76,8 +108,16 @@ public class ShopController {
             @RequestParam("typeId") Integer typeId,
             @RequestParam(value = "current", defaultValue = "1") Integer current,
             @RequestParam(value = "x", required = false) Double x,
-            @RequestParam(value = "y", required = false) Double y
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "sort", required = false) String sort
     ) {
+        if (sort != null && (x == null || y == null)) {
+            return shopService.queryShopByTypeSorted(typeId, sort, current, cursor);
+        }
+        if (cursor != null) {
+            return shopService.queryShopByTypeWithCursor(typeId, cursor, x, y);
+        }
         return shopService.queryShopByType(typeId, current, x, y);
     }
 
@@ -86,18 +126,15 @@ public class ShopController {
      *
      * @param name    商铺名称关键字
      * @param current 页码
+     * @param cursor  游标， 传了（第一页传空字符串）就按游标翻页， 忽略current
      * @return 商铺列表
      */
     @GetMapping("/of/name")
     public Result queryShopByName(
             @RequestParam(value = "name", required = false) String name,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByName(name, current, cursor);
     }
 }
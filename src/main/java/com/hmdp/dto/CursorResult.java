@@ -0,0 +1,14 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class CursorResult {
+    private List<?> list;
+    // 下一页的游标， 没有下一页了是null
+    private String cursor;
+}
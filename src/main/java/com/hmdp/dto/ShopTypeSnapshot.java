@@ -0,0 +1,20 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 店铺类型列表的快照， 创建以后不会再改， 更新的时候整个替换
+ * body是已经序列化好的响应， 每次请求直接写出去， 不用再查数据库和序列化
+ */
+@Data
+public class ShopTypeSnapshot {
+    // redis里的版本号
+    private final long version;
+    private final List<ShopType> types;
+    private final byte[] body;
+    // body的md5， 所有节点算出来都一样
+    private final String etag;
+}
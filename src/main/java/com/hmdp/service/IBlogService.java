@@ -16,7 +16,9 @@ public interface IBlogService extends IService<Blog> {
 
     Result queryBlogById(Long id);
 
-    Result queryHotBlog(Integer current);
+    Result queryHotBlog(Integer current, String cursor);
+
+    Result queryBlogOfUser(Long userId, Integer current, String cursor);
 
     Result likeBlog(Long id);
 
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,7 +18,19 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    byte[] queryGzipById(Long id);
+
+    CompletableFuture<Result> queryByIdAsync(Long id);
+
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    Result queryShopByTypeWithCursor(Integer typeId, String cursor, Double x, Double y);
+
+    Result queryShopByTypeSorted(Integer typeId, String sort, Integer current, String cursor);
+
+    Result queryShopByName(String name, Integer current, String cursor);
 }
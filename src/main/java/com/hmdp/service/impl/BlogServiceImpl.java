@@ -4,17 +4,19 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.CursorResult;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.KeysetPage;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -49,6 +51,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
     @Override
     public Result queryBlogById(Long id) {
         // 根据id查询
@@ -72,26 +77,58 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         Long userId = UserHolder.getUser().getId();
         // 先去redis的set集合里看是否有当前用户
         String key = "blog:liked:" + blog.getId();
+        // 每个用户查的score不一样， 没法放本地， 只记录访问次数
+        hotKeyDetector.record(key);
 //        Boolean isMember = stringRedisTemplate.opsForSet().isMember(key, userId.toString());
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
         blog.setIsLike(score != null);
     }
 
     @Override
-    public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
+    public Result queryHotBlog(Integer current, String cursor) {
+        List<Blog> records;
+        String next = null;
+        if (cursor != null) {
+            // 传了游标： 按(点赞数, id)往后查， 不用offset
+            KeysetPage<Blog> page = KeysetPage.query(query(), "liked", true, Blog::getLiked, Blog::getId,
+                    cursor, SystemConstants.MAX_PAGE_SIZE);
+            if (page == null) {
+                return Result.fail("无效的游标");
+            }
+            records = page.getRecords();
+            next = page.getCursor();
+        } else {
+            // 按页码查， 不需要总数， 不查count
+            Page<Blog> page = query()
+                    .orderByDesc("liked", "id")
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
+            // 获取当前页数据
+            records = page.getRecords();
+        }
         // 查询用户
         records.forEach(blog -> {
             queryBlogUser(blog);
             // 查看当前登录用户是否点赞
             isBlogLiked(blog);
         });
-        return Result.ok(records);
+        return Result.ok(cursor != null ? new CursorResult(records, next) : records);
+    }
+
+    @Override
+    public Result queryBlogOfUser(Long userId, Integer current, String cursor) {
+        if (cursor != null) {
+            KeysetPage<Blog> page = KeysetPage.query(query().eq("user_id", userId), "id", false, Blog::getId, Blog::getId,
+                    cursor, SystemConstants.MAX_PAGE_SIZE);
+            if (page == null) {
+                return Result.fail("无效的游标");
+            }
+            return Result.ok(new CursorResult(page.getRecords(), page.getCursor()));
+        }
+        Page<Blog> page = query()
+                .eq("user_id", userId)
+                .orderByAsc("id")
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
+        return Result.ok(page.getRecords());
     }
 
     @Override
@@ -113,6 +150,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 //                stringRedisTemplate.opsForSet().add(key, userId.toString());
                 // 优化：存到zset, 分数用时间戳  zadd key value score
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                // 本节点的top5副本删掉， 其他节点的副本最多旧HOT_KEY_LOCAL_TTL
+                hotKeyDetector.evict(key + ":top5");
             }
         } else {
             // 如果有，说明已经点赞，数据库需要-1，redis需要删除
@@ -122,6 +161,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 //                stringRedisTemplate.opsForSet().remove(key, userId.toString());
                 // 优化：从zset删除, 分数用时间戳  zadd key value score
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                hotKeyDetector.evict(key + ":top5");
             }
         }
         return Result.ok();
@@ -130,8 +170,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Override
     public Result queryBlogLikes(Long id) {
         String key = RedisConstants.BLOG_LIKED_KEY + id;
-        // 查询top5的点赞用户（根据zset）
-        Set<String> top = stringRedisTemplate.opsForZSet().range(key, 0, 4);
+        // 查询top5的点赞用户（根据zset）， 热门笔记的点赞key是热点， 优先读本地副本
+        Set<String> top = hotKeyDetector.get(key, key + ":top5", () -> stringRedisTemplate.opsForZSet().range(key, 0, 4));
         if (top == null || top.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
@@ -228,7 +268,11 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     private void queryBlogUser(Blog blog) {
         Long userId = blog.getUserId();
-        User user = userService.getById(userId);
+        // 每篇博客都要查一次作者， 走缓存
+        UserDTO user = userService.queryUserDTOById(userId);
+        if (user == null) {
+            return;
+        }
         blog.setName(user.getNickName());
         blog.setIcon(user.getIcon());
     }
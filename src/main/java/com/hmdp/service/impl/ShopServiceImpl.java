@@ -1,20 +1,29 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSON;
-import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.CursorResult;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.KeysetPage;
+import com.hmdp.utils.NearbyShopWindows;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopChangeEvent;
+import com.hmdp.utils.ShopListingIndex;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.ShopSpatialIndex;
 import com.hmdp.utils.SystemConstants;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
@@ -22,15 +31,18 @@ import org.springframework.data.redis.connection.RedisCommands;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -49,6 +61,45 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private RedisBloomFilter shopBloomFilter;
+
+    @Resource
+    private ShopSpatialIndex shopSpatialIndex;
+
+    @Resource
+    private NearbyShopWindows nearbyShopWindows;
+
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    @Resource
+    private ShopListingIndex shopListingIndex;
+
+    @Resource
+    private ApplicationEventPublisher applicationEventPublisher;
+
+    @PostConstruct
+    private void init() {
+        // 布隆过滤器： 不存在的id直接拦截
+        // redis里已经有了就直接加载（滚动发布的时候不用每个节点都重建一次）， 没有才用数据库里所有的店铺id构建
+        shopBloomFilter = new RedisBloomFilter(RedisConstants.BLOOM_SHOP_KEY, RedisConstants.BLOOM_SHOP_FPP, this::queryAllShopIds, stringRedisTemplate);
+        shopBloomFilter.subscribe(redisMessageListenerContainer);
+        if (!shopBloomFilter.loadFromRedis()) {
+            shopBloomFilter.rebuild();
+        } else if (shopBloomFilter.expectedFpp() > RedisConstants.BLOOM_SHOP_FPP * 2) {
+            shopBloomFilter.rebuildAsync();
+        }
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_KEY, shopBloomFilter);
+    }
+
+    // 只查id这一列
+    private List<Long> queryAllShopIds() {
+        return listObjs(new QueryWrapper<Shop>().select("id"), id -> Long.valueOf(id.toString()));
+    }
+
     @Override
     public Result queryById(Long id) {
         // 缓存穿透的代码
@@ -61,8 +112,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         // 缓存击穿： 逻辑过期
 //        Shop shop = queryWithLogicalExpire(id);
-        Shop shop = cacheClient
-                .queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+//        Shop shop = cacheClient
+//                .queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // 缓存击穿： 逻辑过期 + 概率提前刷新， 避免同一批店铺同时过期
+//        Shop shop = cacheClient
+//                .queryWithEarlyRefresh(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // 按application.yaml里cache:shop:的策略查询（本地缓存、二进制编码、过期时间抖动也在那里配置）
+        Shop shop = cacheClient.query(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById);
 
         if (shop == null) {
             return Result.fail("店铺不存在");
@@ -70,6 +128,28 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    // 异步查询： 等redis和重建的时候不占用请求线程
+    @Override
+    public CompletableFuture<Result> queryByIdAsync(Long id) {
+        return cacheClient
+                .queryAsync(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById)
+                .thenApply(shop -> shop == null ? Result.fail("店铺不存在") : Result.ok(shop));
+    }
+
+    // 直接可以返回给客户端的gzip响应体， 店铺不存在返回null（不存在的响应不缓存， 由queryById处理）
+    @Override
+    public byte[] queryGzipById(Long id) {
+        return cacheClient.queryGzip(RedisConstants.CACHE_SHOP_GZIP_KEY, id, shopId -> {
+            Result result = queryById(shopId);
+            return BooleanUtil.isTrue(result.getSuccess()) ? result : null;
+        }, shopTtl(), TimeUnit.MILLISECONDS);
+    }
+
+    // 店铺缓存的过期时间（毫秒）， 按application.yaml里cache:shop:的策略， 所有写店铺缓存的地方都用这一个
+    private long shopTtl() {
+        return cacheClient.policyOf(RedisConstants.CACHE_SHOP_KEY).getTtl().toMillis();
+    }
+
     // 利用redis里的setnx 来当作互斥锁，因为setnx只有不存在的时候才会设置成功
     // 这里写获取锁和释放锁的两个方法
     public boolean tryLock(String key) {
@@ -83,96 +163,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.delete(key);
     }
 
-    // 线程池
-    private static final ExecutorService CACHE_REBUILD_POOL = Executors.newFixedThreadPool(10);
-
     // 缓存击穿： 用逻辑过期
+    // 缓存的格式已经换成了CacheClient的编码器， 这里直接交给CacheClient
     public Shop queryWithLogicalExpire(Long id) {
-        // 1. 先尝试从redis读取缓存
-        String shopCache = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-        // 2. 如果有直接返回
-        if (StrUtil.isBlank(shopCache)) {
-            return null;
-        }
-        // 3. 命中需要把Json,反序列化为java对象
-        RedisData redisData = JSONUtil.toBean(shopCache, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        Shop shop = JSONUtil.toBean(data, Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 4. 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 5. 未过期， 直接返回店铺信息
-            return shop;
-        }
-        // 6. 过期了就缓存重建
-        // 6.1 获取互斥锁
-        boolean isLock = tryLock(RedisConstants.LOCK_SHOP_KEY + id);
-        // 6.2 成功就开启独立线程进行缓存重建 (推荐使用线程池的方式)
-        if (isLock) {
-            // 提交一个任务到线程池
-            CACHE_REBUILD_POOL.submit(() -> {
-                try {
-                    // 重建缓存
-                    this.cacheShopToRedis(id, RedisConstants.CACHE_SHOP_TTL);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁
-                    unLock(RedisConstants.LOCK_SHOP_KEY + id);
-                }
-            });
-        }
-        // 6.3 失败就返回旧数据
-        return shop;
+        return cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, shopTtl(), TimeUnit.MILLISECONDS);
     }
 
     // 缓存击穿： 用互斥锁
+    // 不再自己sleep + 递归重试， 交给CacheClient： 同一个JVM里只有一个线程去抢锁重建， 其他线程等它的结果
     public Shop queryWithMutex(Long id) {
-        // 1. 先尝试从redis读取缓存
-        String shopCache = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-        // 2. 如果有直接返回
-        if (StrUtil.isNotBlank(shopCache)) {
-            // 返回之前， 要转化为java对象
-            Shop shop = JSONUtil.toBean(shopCache, Shop.class);
-//            return Result.ok(shop);
-            return shop;
-        }
-        // 解决缓存穿透：如果是空值， 直接返回，空字符串是!=null的， 所以满足条件会进来
-        // 因为前面已经判断过了， 能够走下来的要么是空字符串， 要么是null
-        if (shopCache != null) {
-//            return Result.fail("商品不存在");
-            return null;
-        }
-        Shop shop = null;
-        try {
-            // 3. 缓存击穿： 实现缓存重建
-            // 3.1 获取互斥锁
-            boolean isLock = tryLock(RedisConstants.LOCK_SHOP_KEY + id);
-            // 3.2 失败就休眠重试
-            if (!isLock) {
-                Thread.sleep(50);
-                // 递归， 再次尝试
-                return queryWithMutex(id);
-            }
-            // 3.3 成功就查询数据库，并写入
-            shop = getById(id);
-            // 4. 数据库没有返回404
-            if (shop == null) {
-                // 解决缓存穿透：如果是空值， 把空值写入redis缓存， 并且设置过期时间
-                stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                //            return Result.fail("商品不存在");
-                return null;
-            }
-            // 5 数据库有，返回数据， 并且写入redis缓存, 写入的时候， 注意要把java对象转化为json字符串
-            stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 缓存击穿： 释放互斥锁
-            unLock(RedisConstants.LOCK_SHOP_KEY + id);
-        }
-//        return Result.ok(shop);
-        return shop;
+        return cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, shopTtl(), TimeUnit.MILLISECONDS);
     }
 
     // 封装缓存穿透的代码， 防止丢失
@@ -211,11 +211,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     public void cacheShopToRedis(Long id, Long expireSeconds) {
         // 1. 先查询数据库
         Shop shop = getById(id);
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        // 2. 写入redis, 这里注意就不设置过期时间
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 2. 写入redis, 这里注意就不设置过期时间， 格式和CacheClient读的一致
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1. 写入数据库
+        save(shop);
+        // 2. 加入布隆过滤器， 否则新店铺会被拦截
+        shopBloomFilter.add(shop.getId());
+        // 更新所有节点的本地店铺索引
+        applicationEventPublisher.publishEvent(new ShopChangeEvent(shop.getId(), getById(shop.getId()), false));
+        // 3. 返回店铺id
+        return Result.ok(shop.getId());
     }
 
     @Override
@@ -227,8 +236,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 1. 先更新数据库
         updateById(shop);
-        // 2. 再删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 2. 事务提交以后再删除缓存（同时广播给所有节点删除本地缓存）
+        // 在事务里删的话， 提交之前别的线程重建， 读到的还是旧数据
+        // 删除的时候缓存的版本号会加1， 之前开始的重建就写不回去了， 过一会还会再删一次
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
+                cacheClient.delete(RedisConstants.CACHE_SHOP_GZIP_KEY + id);
+                // 更新所有节点的本地店铺索引
+                applicationEventPublisher.publishEvent(new ShopChangeEvent(id, getById(id), false));
+            }
+        });
         // 3. 返回
         return Result.ok();
     }
@@ -237,38 +256,219 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
         // 1. 先判断是否有经纬度
         if (x == null || y == null) {
-            // 根据类型分页查询
+            // 根据类型分页查询， 不需要总数， 不查count
             Page<Shop> page = query()
                     .eq("type_id", typeId)
-                    .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+                    .orderByAsc("id")
+                    .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE, false));
             // 返回数据
             return Result.ok(page.getRecords());
         }
         // 2. 计算分页参数
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        // 3. 查附近的店铺id和距离： 本地的网格索引可用就直接查， 不用每一页都把前面的页再查一遍
+        List<Long> ids;
+        Map<String, Distance> distanceMap;
+        if (shopSpatialIndex.isReady()) {
+            List<ShopSpatialIndex.Hit> hits = shopSpatialIndex.search(typeId.longValue(), x, y, 5000, from, SystemConstants.DEFAULT_PAGE_SIZE);
+            ids = new ArrayList<>(hits.size());
+            distanceMap = new HashMap<>(hits.size());
+            for (ShopSpatialIndex.Hit hit : hits) {
+                ids.add(hit.getId());
+                distanceMap.put(hit.getId().toString(), new Distance(hit.getDistance()));
+            }
+        } else {
+            // 本地索引还没建好， 查redis
+            ids = new ArrayList<>();
+            distanceMap = new HashMap<>();
+            queryNearbyFromRedis(typeId, current, x, y, ids, distanceMap);
+        }
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 4. 根据店铺id, 批量查询店铺缓存， 只有没命中的才查数据库
+        List<Shop> shops = cacheClient.queryBatchWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> new ArrayList<>(listByIds(missIds)), Shop::getId);
+        if (shops.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 5. 把距离和店铺信息合并， 缓存里的对象是共享的， 要复制一份再设置距离
+        shops = shops.stream().map(shop -> {
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            return copy;
+        }).collect(Collectors.toList());
+        return Result.ok(shops);
+    }
+
+    @Override
+    public Result queryShopByTypeWithCursor(Integer typeId, String cursor, Double x, Double y) {
+        // 没有经纬度： 按id游标分页
+        if (x == null || y == null) {
+            KeysetPage<Shop> page = KeysetPage.query(query().eq("type_id", typeId), "id", false, Shop::getId, Shop::getId,
+                    cursor, SystemConstants.DEFAULT_PAGE_SIZE);
+            if (page == null) {
+                return Result.fail("无效的游标");
+            }
+            return Result.ok(new CursorResult(page.getRecords(), page.getCursor()));
+        }
+        // 1. 解析游标， 第一页没有游标， 用当前位置所在的geohash格子
+        NearbyShopWindows.Cursor last = null;
+        String geohash;
+        if (StrUtil.isBlank(cursor)) {
+            geohash = NearbyShopWindows.geohash(x, y);
+        } else {
+            last = NearbyShopWindows.Cursor.decode(cursor);
+            if (last == null || !last.getTypeId().equals(typeId.longValue())) {
+                return Result.fail("无效的游标");
+            }
+            // 翻页的时候用第一页的格子， 用户走动了也不会换窗口
+            geohash = last.getGeohash();
+        }
+        // 2. 取这个格子的窗口， 没有就从格子中心搜索一次， 缓存起来给后面的页和附近的用户用
+        NearbyShopWindows.Window window = nearbyShopWindows.get(typeId.longValue(), geohash,
+                (cx, cy) -> loadNearbyWindow(typeId, cx, cy));
+        // 3. 从游标的位置往后取一页
+        int from = last == null ? 0 : last.position(window);
+        int end = Math.min(window.size(), from + SystemConstants.DEFAULT_PAGE_SIZE);
+        if (from >= end) {
+            return Result.ok(new CursorResult(Collections.emptyList(), null));
+        }
+        List<Long> ids = new ArrayList<>(end - from);
+        for (int i = from; i < end; i++) {
+            ids.add(window.id(i));
+        }
+        String next = end < window.size()
+                ? new NearbyShopWindows.Cursor(typeId.longValue(), geohash, window.distance(end - 1), window.id(end - 1)).encode()
+                : null;
+        // 4. 批量查店铺缓存， 距离按用户自己的位置算
+        List<Shop> shops = cacheClient.queryBatchWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> new ArrayList<>(listByIds(missIds)), Shop::getId);
+        shops = shops.stream().map(shop -> {
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(ShopSpatialIndex.distance(x, y, shop.getX(), shop.getY()));
+            return copy;
+        }).collect(Collectors.toList());
+        return Result.ok(new CursorResult(shops, next));
+    }
+
+    // 一个格子的完整窗口： 格子中心5公里内的所有店铺
+    private NearbyShopWindows.Window loadNearbyWindow(Integer typeId, double x, double y) {
+        if (shopSpatialIndex.isReady()) {
+            List<ShopSpatialIndex.Hit> hits = shopSpatialIndex.search(typeId.longValue(), x, y, 5000, 0, Integer.MAX_VALUE);
+            long[] ids = new long[hits.size()];
+            double[] distances = new double[hits.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = hits.get(i).getId();
+                distances[i] = hits.get(i).getDistance();
+            }
+            return new NearbyShopWindows.Window(ids, distances);
+        }
+        // 本地索引还没建好， 查redis， 不限制条数
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(
+                RedisConstants.SHOP_GEO_KEY + typeId,
+                GeoReference.fromCoordinate(x, y),
+                new Distance(5000),
+                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().sortAscending()
+        );
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results == null ? Collections.emptyList() : results.getContent();
+        long[] ids = new long[list.size()];
+        double[] distances = new double[list.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Long.parseLong(list.get(i).getContent().getName());
+            distances[i] = list.get(i).getDistance().getValue();
+        }
+        return new NearbyShopWindows.Window(ids, distances);
+    }
+
+    @Override
+    public Result queryShopByTypeSorted(Integer typeId, String sort, Integer current, String cursor) {
+        ShopListingIndex.Sort order = ShopListingIndex.Sort.of(sort);
+        if (order == null) {
+            return Result.fail("不支持的排序: " + sort);
+        }
+        // 1. 索引还没建好， 查数据库
+        if (!shopListingIndex.isReady()) {
+            // 游标是排序索引里的位置， 数据库没法接着翻， 不能悄悄回到第一页
+            if (cursor != null) {
+                return Result.fail("店铺索引加载中, 请稍后再试");
+            }
+            Page<Shop> page = query()
+                    .eq("type_id", typeId)
+                    .orderBy(true, !order.isDesc(), order.getColumn())
+                    .orderByAsc("id")
+                    .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE, false));
+            return Result.ok(page.getRecords());
+        }
+        // 2. 查排序索引， 传了游标按游标翻页， 否则按页码
+        String[] next = new String[1];
+        List<Long> ids;
+        if (cursor != null) {
+            ids = shopListingIndex.search(typeId.longValue(), order, cursor, SystemConstants.DEFAULT_PAGE_SIZE, next);
+            if (ids == null) {
+                return Result.fail("无效的游标");
+            }
+        } else {
+            ids = shopListingIndex.search(typeId.longValue(), order, (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE, SystemConstants.DEFAULT_PAGE_SIZE);
+        }
+        // 3. 批量查店铺缓存
+        List<Shop> shops = ids.isEmpty() ? Collections.emptyList()
+                : cacheClient.queryBatchWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> new ArrayList<>(listByIds(missIds)), Shop::getId);
+        return Result.ok(cursor != null ? new CursorResult(shops, next[0]) : shops);
+    }
+
+    @Override
+    public Result queryShopByName(String name, Integer current, String cursor) {
+        // 1. 没有关键字或者索引还没建好， 查数据库
+        if (StrUtil.isBlank(name) || !shopNameIndex.isReady()) {
+            // 游标是名称索引里的位置， 数据库没法接着翻， 不能悄悄回到第一页
+            if (cursor != null) {
+                return Result.fail(StrUtil.isBlank(name) ? "无效的游标" : "店铺索引加载中, 请稍后再试");
+            }
+            Page<Shop> page = query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
+            return Result.ok(page.getRecords());
+        }
+        // 2. 查名称索引， 传了游标按游标翻页， 否则按页码
+        String[] next = new String[1];
+        List<Long> ids;
+        if (cursor != null) {
+            ids = shopNameIndex.search(name, cursor, SystemConstants.MAX_PAGE_SIZE, next);
+            if (ids == null) {
+                return Result.fail("无效的游标");
+            }
+        } else {
+            ids = shopNameIndex.search(name, (current - 1) * SystemConstants.MAX_PAGE_SIZE, SystemConstants.MAX_PAGE_SIZE);
+        }
+        // 3. 批量查店铺缓存
+        List<Shop> shops = ids.isEmpty() ? Collections.emptyList()
+                : cacheClient.queryBatchWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> new ArrayList<>(listByIds(missIds)), Shop::getId);
+        return Result.ok(cursor != null ? new CursorResult(shops, next[0]) : shops);
+    }
+
+    // 用redis的GEO查附近的店铺， 结果放到ids和distanceMap里
+    private void queryNearbyFromRedis(Integer typeId, Integer current, Double x, Double y, List<Long> ids, Map<String, Distance> distanceMap) {
         int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
         int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
-        // 3. 查询redis
+        // 查询redis
         String key = RedisConstants.SHOP_GEO_KEY + typeId;
-        // 4. 根据id分类，查询对应id的所有店铺 redis的原命令： GEOSEARCH key FROMLONLAT x y BYRADIUS 5000 m WITHDIST
+        // 根据id分类，查询对应id的所有店铺 redis的原命令： GEOSEARCH key FROMLONLAT x y BYRADIUS 5000 m WITHDIST
         GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(
                 key,
                 GeoReference.fromCoordinate(x, y),
                 new Distance(5000),
                 RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(end)
         );
-        if (results == null || results.getContent().isEmpty()) {
-            return Result.ok(Collections.emptyList());
+        if (results == null) {
+            return;
         }
-        // 5. 这是没有分页的数据
+        // 这是没有分页的数据
         List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
-        if (list.size() <= from) {
-            // from比list还大， 说明没有数据
-            return Result.ok(Collections.emptyList());
-        }
-        // 6. 分页，我们需要自己手动逻辑分页，这里直接使用skip就好
-        // 6.1 从from截取后，遍历找到距离和店铺id并且存起来
-        List<Long> ids = new ArrayList<>(list.size());
-        Map<String, Distance> distanceMap = new HashMap<>(list.size());
+        // 分页，我们需要自己手动逻辑分页，这里直接使用skip就好
+        // 从from截取后，遍历找到距离和店铺id并且存起来
         list.stream().skip(from).forEach(result -> {
             // 获取店铺id
             String id = result.getContent().getName();
@@ -277,17 +477,6 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(id, distance);
         });
-        // 7.根据从redis取出的店铺id, 再去数据库查询店铺信息
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id, " + idStr + ")").list();
-        if (shops == null || shops.isEmpty()) {
-            return Result.ok(Collections.emptyList());
-        }
-        // 8. 把距离和店铺信息合并
-        shops.forEach(shop -> {
-            Distance distance = distanceMap.get(shop.getId().toString());
-            shop.setDistance(distance.getValue());
-        });
-        return Result.ok(shops);
     }
+
 }
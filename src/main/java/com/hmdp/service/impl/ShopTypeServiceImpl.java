@@ -1,20 +1,124 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.crypto.digest.DigestUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * <p>
- *  服务实现类
+ * 服务实现类
  * </p>
  *
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    // 店铺类型一年改不了几次， 整个列表放在内存里
+    private volatile ShopTypeSnapshot snapshot;
+
+    @PostConstruct
+    public void init() {
+        reload();
+        // 其他节点改了店铺类型， 消息内容是新的版本号
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            long version = Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (version != snapshot.getVersion()) {
+                reload();
+            }
+        }, new ChannelTopic(RedisConstants.SHOP_TYPE_CHANGE_CHANNEL));
+    }
+
+    @Override
+    public ShopTypeSnapshot snapshot() {
+        return snapshot;
+    }
+
+    // 消息可能会丢， 每分钟再对一次版本号
+    @Scheduled(initialDelay = 60000, fixedDelay = 60000)
+    public void checkVersion() {
+        if (currentVersion() != snapshot.getVersion()) {
+            reload();
+        }
+    }
+
+    @Override
+    public Result saveType(ShopType shopType) {
+        save(shopType);
+        publishChange();
+        return Result.ok(shopType.getId());
+    }
+
+    @Override
+    public Result updateType(ShopType shopType) {
+        if (shopType.getId() == null) {
+            return Result.fail("类型id不能为空");
+        }
+        updateById(shopType);
+        publishChange();
+        return Result.ok();
+    }
+
+    @Override
+    public Result deleteType(Long id) {
+        removeById(id);
+        publishChange();
+        return Result.ok();
+    }
+
+    // 数据库改完以后： 版本号加1， 重新加载本地的快照， 再通知其他节点
+    private void publishChange() {
+        Long version = stringRedisTemplate.opsForValue().increment(RedisConstants.SHOP_TYPE_VERSION_KEY);
+        reload();
+        stringRedisTemplate.convertAndSend(RedisConstants.SHOP_TYPE_CHANGE_CHANNEL, String.valueOf(version));
+    }
+
+    // 先读版本号再查数据库， 查的过程中又改了的话， 版本号对不上， 下次还会再加载
+    private synchronized void reload() {
+        long version = currentVersion();
+        List<ShopType> types = Collections.unmodifiableList(query().orderByAsc("sort").list());
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(Result.ok(types));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("店铺类型序列化失败", e);
+        }
+        snapshot = new ShopTypeSnapshot(version, types, body, "\"" + DigestUtil.md5Hex(body) + "\"");
+        log.info("店铺类型已加载: 版本{}, {}个", version, types.size());
+    }
+
+    private long currentVersion() {
+        String version = stringRedisTemplate.opsForValue().get(RedisConstants.SHOP_TYPE_VERSION_KEY);
+        return version == null ? 0 : Long.parseLong(version);
+    }
 }
@@ -12,6 +12,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.HmdpCached;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
@@ -168,6 +169,14 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(count);
     }
 
+    // 用户的基本信息（昵称、头像）， 按cache:user:的策略缓存
+    @Override
+    @HmdpCached(prefix = RedisConstants.CACHE_USER_KEY)
+    public UserDTO queryUserDTOById(Long id) {
+        User user = getById(id);
+        return user == null ? null : BeanUtil.copyProperties(user, UserDTO.class);
+    }
+
     private User createUserWithPhone(String phone) {
         // 1. 生成用户信息
         User user = new User();
@@ -2,30 +2,39 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStock;
 import com.hmdp.utils.UserHolder;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -50,6 +59,16 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    // 每次从stream读多少条订单， 1就是原来的一条一条处理， 大于1就批量写库
+    @Value("${hmdp.seckill.order-batch-size:1}")
+    private int orderBatchSize;
+
     private IVoucherOrderService proxy;
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
@@ -69,7 +88,124 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     // 这是spring 提供的注解，加载类的时候就执行这个方法
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXCUTOR.submit(new VoucherOrderHandler());
+        SECKILL_ORDER_EXCUTOR.submit(orderBatchSize > 1 ? new BatchVoucherOrderHandler() : new VoucherOrderHandler());
+    }
+
+    // 批量处理订单： 一次读N条， 一条insert写所有订单， 每个优惠券一条update扣库存， 一次XACK所有消息
+    private class BatchVoucherOrderHandler implements Runnable {
+        String queueName = "stream.orders";
+        // 吞吐量统计
+        long windowStart = System.currentTimeMillis();
+        long windowOrders = 0;
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    // XREADGROUP GROUP g1 c1 COUNT N BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from("g1", "c1"),
+                            StreamReadOptions.empty().count(orderBatchSize).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                    );
+                    if (list == null || list.isEmpty()) {
+                        continue;
+                    }
+                    handleBatch(list);
+                } catch (Exception e) {
+                    log.error("批量生成订单失败", e);
+                    handlePendingList();
+                }
+            }
+        }
+
+        private void handlePendingList() {
+            while (true) {
+                try {
+                    // XREADGROUP GROUP g1 c1 COUNT N STREAMS stream.orders 0
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from("g1", "c1"),
+                            StreamReadOptions.empty().count(orderBatchSize),
+                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                    );
+                    if (list == null || list.isEmpty()) {
+                        break;
+                    }
+                    handleBatch(list);
+                } catch (Exception e) {
+                    log.error("pending-list异常", e);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException interruptedException) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void handleBatch(List<MapRecord<String, Object, Object>> list) {
+            List<VoucherOrder> orders = new ArrayList<>(list.size());
+            RecordId[] recordIds = new RecordId[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                orders.add(toVoucherOrder(list.get(i).getValue()));
+                recordIds[i] = list.get(i).getId();
+            }
+            // 1. 写库， 一个事务
+            int created = transactionTemplate.execute(status -> createVoucherOrders(orders));
+            // 2. 一次确认所有消息
+            stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", recordIds);
+            // 3. 每10秒打印一次吞吐量
+            windowOrders += created;
+            long now = System.currentTimeMillis();
+            if (now - windowStart >= 10000) {
+                log.debug("批量下单: " + (now - windowStart) / 1000 + "秒内写入" + windowOrders + "个订单, " + windowOrders * 1000 / (now - windowStart) + "个/秒");
+                windowStart = now;
+                windowOrders = 0;
+            }
+        }
+    }
+
+    // 批量写订单， 返回实际写入的个数， 要在事务里调用
+    private int createVoucherOrders(List<VoucherOrder> orders) {
+        // 1. 去重： pending-list重新投递的消息可能已经写过了， 按订单id过滤
+        Map<Long, VoucherOrder> byId = new LinkedHashMap<>();
+        orders.forEach(order -> byId.putIfAbsent(order.getId(), order));
+        query().select("id").in("id", byId.keySet()).list().forEach(existing -> byId.remove(existing.getId()));
+        if (byId.isEmpty()) {
+            return 0;
+        }
+        // 2. 每个优惠券一条update扣库存 set stock = stock - k where voucher_id = ? and stock >= k
+        Map<Long, List<VoucherOrder>> byVoucher = byId.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> toInsert = new ArrayList<>(byId.size());
+        byVoucher.forEach((voucherId, voucherOrders) -> {
+            int k = voucherOrders.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId).ge("stock", k)
+                    .update();
+            if (success) {
+                toInsert.addAll(voucherOrders);
+                return;
+            }
+            // 2.1 库存不够k个（数据库和redis对不上）， 和一条一条处理一样， 按消息的顺序能写几个写几个
+            SeckillVoucher voucher = seckillVoucherService.query().eq("voucher_id", voucherId).last("FOR UPDATE").one();
+            int available = voucher == null || voucher.getStock() == null ? 0 : Math.max(0, Math.min(voucher.getStock(), k));
+            if (available > 0) {
+                seckillVoucherService.update()
+                        .setSql("stock = stock - " + available)
+                        .eq("voucher_id", voucherId).ge("stock", available)
+                        .update();
+                toInsert.addAll(voucherOrders.subList(0, available));
+            }
+            log.error("库存不足, 优惠券" + voucherId + "的" + (k - available) + "个订单没有写入");
+        });
+        // 3. 一条insert写所有订单
+        if (!toInsert.isEmpty()) {
+            getBaseMapper().insertBatch(toInsert);
+        }
+        return toInsert.size();
     }
 
     private class VoucherOrderHandler implements Runnable {
@@ -91,8 +227,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                     }
                     // 取消息
                     MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+                    VoucherOrder voucherOrder = toVoucherOrder(record.getValue());
                     // 获取成功，生成订单
                     handleVoucherOrder(voucherOrder);
                     // ACK确认
@@ -119,8 +254,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                     }
                     // 取消息
                     MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+                    VoucherOrder voucherOrder = toVoucherOrder(record.getValue());
                     // 获取成功，生成订单
                     handleVoucherOrder(voucherOrder);
                     // ACK确认
@@ -151,6 +285,16 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
 
+    // 消息转成订单， 脚本里生成的订单id是时间戳和序列号分开放的， 在这里拼起来
+    private VoucherOrder toVoucherOrder(Map<Object, Object> values) {
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+        Object seq = values.get("seq");
+        if (seq != null) {
+            voucherOrder.setId(RedisIdWorker.compose(Long.parseLong(values.get("ts").toString()), Long.parseLong(seq.toString())));
+        }
+        return voucherOrder;
+    }
+
     private void handleVoucherOrder(VoucherOrder voucherOrder) {
         Long userId = voucherOrder.getUserId();
         // 使用redisson获取锁
@@ -174,18 +318,32 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result seckillVoucher(Long voucherId) {
         // 获取用户id
         Long userId = UserHolder.getUser().getId();
-        // 订单id 这个我们可以用我们写的redis的id生成器
-        long orderId = redisIdWorker.nextId("order");
-        // 1 执行lua脚本
+        // 已经卖完了， 直接返回， 不用访问redis
+        if (seckillStock.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 库存分片了， 走分片的扣减
+        int shards = seckillStock.shardCount(voucherId);
+        if (shards > 0) {
+            return seckillVoucherSharded(voucherId, userId, shards);
+        }
+        // 1 执行lua脚本， 订单id在脚本里抢成功了才生成（时间戳 + 当天的序列号）
+        LocalDateTime now = LocalDateTime.now();
         Long result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
+                Collections.singletonList(RedisIdWorker.countKey("order", now)),
+                voucherId.toString(), userId.toString(), String.valueOf(RedisIdWorker.timestamp(now))
         );
         // 2. 判断结果是否为0
         int r = result.intValue();
         if (r != 0) {
-            // 3. 不为0，代表没有购买资格
+            // 3. 不为0，代表没有购买资格， 卖完了本地记一下， 通知其他节点
+            if (r == 1) {
+                seckillStock.markSoldOut(voucherId);
+            }
+            if (r == 3) {
+                return Result.fail("秒杀券不存在");
+            }
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
         // 获取代理对象
@@ -195,6 +353,30 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         return Result.ok(0);
     }
 
+    // 分片库存： 分片可能在不同的redis节点上， 扣库存和发消息没法放在一个脚本里， 发消息失败要把库存还回去
+    private Result seckillVoucherSharded(Long voucherId, Long userId, int shards) {
+        // 1. 扣库存
+        int shard = seckillStock.deduct(voucherId, userId, shards);
+        if (shard < 0) {
+            return Result.fail(shard == -SeckillStock.SOLD_OUT ? "库存不足" : "不能重复下单");
+        }
+        // 2. 抢成功了才生成订单id， 发送消息到队列中
+        try {
+            long orderId = redisIdWorker.nextId("order");
+            Map<String, String> message = new HashMap<>();
+            message.put("userId", userId.toString());
+            message.put("voucherId", voucherId.toString());
+            message.put("id", String.valueOf(orderId));
+            stringRedisTemplate.opsForStream().add("stream.orders", message);
+        } catch (RuntimeException e) {
+            seckillStock.rollback(voucherId, userId, shards, shard);
+            throw e;
+        }
+        // 获取代理对象
+        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        return Result.ok(0);
+    }
+
 
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
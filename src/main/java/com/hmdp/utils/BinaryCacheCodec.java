@@ -0,0 +1,215 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.ReflectUtil;
+import cn.hutool.json.JSONUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制格式：
+ * [1字节魔数][8字节逻辑过期时间][4字节字段签名][字段是否为null的位图][各个非null字段的值]
+ * 整数用zigzag变长编码， 字符串是 长度 + UTF-8， 时间是 秒 + 纳秒， 其他类型退化成json字符串
+ * 字段签名是字段名和类型算出来的， 实体类加了字段签名就对不上， 当作没命中， 重建的时候会写成新格式
+ * 魔数不对、长度不够、数据损坏（被截断）也一样当作没命中， 不会让读请求报错
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final byte MAGIC = (byte) 0xC1;
+    public static final BinaryCacheCodec INSTANCE = new BinaryCacheCodec();
+    // 魔数 + 逻辑过期时间 + 字段签名
+    private static final int HEADER_LENGTH = 1 + 8 + 4;
+
+    // 每个类的字段只反射一次
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(Object value, long expireAt) {
+        Schema schema = schemaOf(value.getClass());
+        Output out = new Output();
+        out.write(MAGIC);
+        out.writeLong(expireAt);
+        out.writeInt(schema.fingerprint);
+        // 1. null位图
+        Object[] values = new Object[schema.fields.length];
+        byte[] nullBits = new byte[(schema.fields.length + 7) >>> 3];
+        for (int i = 0; i < schema.fields.length; i++) {
+            values[i] = ReflectUtil.getFieldValue(value, schema.fields[i]);
+            if (values[i] == null) {
+                nullBits[i >>> 3] |= (1 << (i & 7));
+            }
+        }
+        out.write(nullBits, 0, nullBits.length);
+        // 2. 字段的值
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                writeValue(out, schema.fields[i].getType(), values[i]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public long readExpireAt(byte[] bytes) {
+        // 头部都不完整， 当作已经过期， 解析的时候会返回null
+        if (bytes.length < HEADER_LENGTH) {
+            return 0;
+        }
+        return ByteBuffer.wrap(bytes, 1, 8).getLong();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        if (bytes.length < HEADER_LENGTH || bytes[0] != MAGIC) {
+            return null;
+        }
+        Schema schema = schemaOf(type);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        in.position(1 + 8);
+        if (in.getInt() != schema.fingerprint) {
+            return null;
+        }
+        try {
+            byte[] nullBits = new byte[(schema.fields.length + 7) >>> 3];
+            in.get(nullBits);
+            R r = ReflectUtil.newInstance(type);
+            for (int i = 0; i < schema.fields.length; i++) {
+                if ((nullBits[i >>> 3] & (1 << (i & 7))) != 0) {
+                    continue;
+                }
+                ReflectUtil.setFieldValue(r, schema.fields[i], readValue(in, schema.fields[i]));
+            }
+            return r;
+        } catch (RuntimeException e) {
+            // 数据被截断（BufferUnderflow、越界）或者损坏（长度、json解析不了）， 当作没命中， 会重建
+            return null;
+        }
+    }
+
+    private Schema schemaOf(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private void writeValue(Output out, Class<?> type, Object value) {
+        if (type == Long.class || type == long.class) {
+            out.writeVarLong(((Long) value));
+        } else if (type == Integer.class || type == int.class) {
+            out.writeVarLong(((Integer) value));
+        } else if (type == Double.class || type == double.class) {
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (type == Boolean.class || type == boolean.class) {
+            out.write((Boolean) value ? 1 : 0);
+        } else if (type == String.class) {
+            out.writeString((String) value);
+        } else if (type == LocalDateTime.class) {
+            LocalDateTime time = (LocalDateTime) value;
+            out.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+            out.writeVarLong(time.getNano());
+        } else {
+            out.writeString(JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private Object readValue(ByteBuffer in, Field field) {
+        Class<?> type = field.getType();
+        if (type == Long.class || type == long.class) {
+            return readVarLong(in);
+        } else if (type == Integer.class || type == int.class) {
+            return (int) readVarLong(in);
+        } else if (type == Double.class || type == double.class) {
+            return Double.longBitsToDouble(in.getLong());
+        } else if (type == Boolean.class || type == boolean.class) {
+            return in.get() == 1;
+        } else if (type == String.class) {
+            return readString(in);
+        } else if (type == LocalDateTime.class) {
+            long second = readVarLong(in);
+            return LocalDateTime.ofEpochSecond(second, (int) readVarLong(in), ZoneOffset.UTC);
+        } else {
+            return JSONUtil.toBean(readString(in), field.getGenericType(), false);
+        }
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long raw = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            raw |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        // zigzag还原
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        String s = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    // 类的字段： 去掉static和transient， 按字段名排序， 保证不同节点的顺序一样
+    private static class Schema {
+        private final Field[] fields;
+        private final int fingerprint;
+
+        private Schema(Class<?> type) {
+            this.fields = Arrays.stream(ReflectUtil.getFields(type))
+                    .filter(f -> !Modifier.isStatic(f.getModifiers()) && !Modifier.isTransient(f.getModifiers()))
+                    .sorted(Comparator.comparing(Field::getName))
+                    .peek(f -> f.setAccessible(true))
+                    .toArray(Field[]::new);
+            StringBuilder signature = new StringBuilder(type.getName());
+            for (Field field : fields) {
+                signature.append(';').append(field.getName()).append(':').append(field.getType().getName());
+            }
+            this.fingerprint = signature.toString().hashCode();
+        }
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+
+        private Output() {
+            super(256);
+        }
+
+        private void writeLong(long v) {
+            for (int i = 56; i >= 0; i -= 8) {
+                write((int) (v >>> i));
+            }
+        }
+
+        private void writeInt(int v) {
+            for (int i = 24; i >= 0; i -= 8) {
+                write(v >>> i);
+            }
+        }
+
+        // zigzag + 变长编码， 小的数字只占1个字节
+        private void writeVarLong(long v) {
+            long raw = (v << 1) ^ (v >> 63);
+            while ((raw & ~0x7FL) != 0) {
+                write((int) ((raw & 0x7F) | 0x80));
+                raw >>>= 7;
+            }
+            write((int) raw);
+        }
+
+        private void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -1,28 +1,306 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
+import cn.hutool.core.util.ZipUtil;
 import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Component
 public class CacheClient {
 
+    // 带版本号写缓存的脚本
+    private static final DefaultRedisScript<Long> VERSIONED_SET_SCRIPT;
+    static {
+        VERSIONED_SET_SCRIPT = new DefaultRedisScript<>();
+        VERSIONED_SET_SCRIPT.setLocation(new ClassPathResource("versioned_set.lua"));
+        VERSIONED_SET_SCRIPT.setResultType(Long.class);
+    }
+
+    // 延迟双删用的定时器
+    private static final ScheduledExecutorService DELAY_DELETE_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-delay-delete");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    // 异步的api用lettuce的reactive命令， 不阻塞请求线程
+    private final ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    // 本地缓存（一级缓存），按key前缀划分，存的是反序列化好的java对象
+    // 注意：本地缓存里的对象是共享的，调用方不要修改它
+    private final Map<String, LRUCache<String, Object>> localCaches = new ConcurrentHashMap<>();
+
+    // redis（二级缓存）的命中统计，按key前缀划分
+    private final Map<String, LongAdder> redisHitCount = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> redisMissCount = new ConcurrentHashMap<>();
+
+    // 逻辑过期数据的编码器， 按key前缀划分
+    private final Map<String, CacheCodec> codecs = new ConcurrentHashMap<>();
+
+    // 逻辑过期时间的随机抖动比例， 按key前缀划分
+    private final Map<String, Double> ttlJitters = new ConcurrentHashMap<>();
+
+    // 重建一次的耗时（毫秒， 指数加权平均）， 按key前缀划分， 用来决定提前刷新的概率
+    private final Map<String, Double> rebuildCosts = new ConcurrentHashMap<>();
+
+    // 同一个key的重建在本JVM里只执行一次
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    // 缓存策略， 按key前缀划分
+    private final Map<String, CachePolicy> policies = new ConcurrentHashMap<>();
+    private static final CachePolicy DEFAULT_POLICY = new CachePolicy();
+
+    // 布隆过滤器， 按key前缀划分， 不存在的id直接拦截， 不访问redis和数据库
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    // 热点key探测， 热点key的值在本地再放一份
+    private final HotKeyDetector hotKeyDetector;
+
+    // 后台重建用的线程池（有界队列 + 按key去重）
+    private final CacheRebuildExecutor rebuildExecutor;
+
+    // 按前缀和结果统计的指标
+    private final CacheMetrics metrics;
+
+    // 和springmvc用同一个ObjectMapper， 缓存的响应体和直接返回的一模一样
+    private final ObjectMapper objectMapper;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, ReactiveStringRedisTemplate reactiveStringRedisTemplate,
+                       RedisMessageListenerContainer listenerContainer, HotKeyDetector hotKeyDetector,
+                       CacheRebuildExecutor rebuildExecutor, CacheMetrics metrics, ObjectMapper objectMapper) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.reactiveStringRedisTemplate = reactiveStringRedisTemplate;
+        this.hotKeyDetector = hotKeyDetector;
+        this.rebuildExecutor = rebuildExecutor;
+        this.metrics = metrics;
+        this.objectMapper = objectMapper;
+        // 订阅缓存失效的广播，其他节点删除缓存的时候，本节点也要把本地缓存删掉
+        listenerContainer.addMessageListener(
+                (message, pattern) -> evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL)
+        );
+    }
+
+    // 注册一个key前缀的缓存策略： 本地缓存、编码器、过期时间的抖动都按策略设置好
+    public void registerPolicy(CachePolicy policy) {
+        String keyPrefix = policy.getPrefix();
+        policies.put(keyPrefix, policy);
+        if (policy.getLocalSize() > 0) {
+            enableLocalCache(keyPrefix, policy.getLocalSize(), policy.getLocalTtl().toMillis(), TimeUnit.MILLISECONDS);
+        }
+        setCodec(keyPrefix, "binary".equalsIgnoreCase(policy.getCodec()) ? BinaryCacheCodec.INSTANCE : JsonCacheCodec.INSTANCE);
+        if (policy.getTtlJitter() > 0) {
+            setTtlJitter(keyPrefix, policy.getTtlJitter());
+        }
+    }
+
+    // 没有配置的前缀用默认策略
+    public CachePolicy policyOf(String keyPrefix) {
+        return policies.getOrDefault(keyPrefix, DEFAULT_POLICY);
+    }
+
+    // 按前缀配置的策略查询
+    public <R, ID> R query(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback) {
+        CachePolicy policy = policyOf(keyPrefix);
+        long ttl = policy.getTtl().toMillis();
+        switch (policy.getStrategy()) {
+            case MUTEX:
+                return queryWithMutex(keyPrefix, id, type, dbCallback, ttl, TimeUnit.MILLISECONDS);
+            case LOGICAL_EXPIRE:
+                return queryWithLogicalExpire(keyPrefix, id, type, dbCallback, ttl, TimeUnit.MILLISECONDS);
+            case EARLY_REFRESH:
+                return queryWithEarlyRefresh(keyPrefix, id, type, dbCallback, ttl, TimeUnit.MILLISECONDS);
+            default:
+                return queryWithCacheThrough(keyPrefix, id, type, dbCallback, ttl, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 按前缀配置的策略查询（异步）
+    public <R, ID> CompletableFuture<R> queryAsync(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback) {
+        CachePolicy policy = policyOf(keyPrefix);
+        long ttl = policy.getTtl().toMillis();
+        switch (policy.getStrategy()) {
+            case MUTEX:
+                return queryWithMutexAsync(keyPrefix, id, type, dbCallback, ttl, TimeUnit.MILLISECONDS);
+            case LOGICAL_EXPIRE:
+                return queryWithLogicalExpireAsync(keyPrefix, id, type, dbCallback, ttl, TimeUnit.MILLISECONDS);
+            case EARLY_REFRESH:
+                return queryWithEarlyRefreshAsync(keyPrefix, id, type, dbCallback, ttl, TimeUnit.MILLISECONDS);
+            default:
+                return queryWithCacheThroughAsync(keyPrefix, id, type, dbCallback, ttl, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 空值的过期时间（毫秒）
+    private long nullTtl(String keyPrefix) {
+        return policyOf(keyPrefix).getNullTtl().toMillis();
+    }
+
+    // 重建用的互斥锁， 每个缓存key一把
+    private static String lockKey(String key) {
+        return RedisConstants.LOCK_CACHE_KEY + key;
+    }
+
+    // 给某个key前缀开启本地缓存， 容量满了按LRU淘汰， 超过ttl也会淘汰
+    public void enableLocalCache(String keyPrefix, int capacity, Long time, TimeUnit unit) {
+        localCaches.put(keyPrefix, CacheUtil.newLRUCache(capacity, unit.toMillis(time)));
+    }
+
+    // 给某个key前缀注册布隆过滤器
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    public Map<String, RedisBloomFilter> bloomFilters() {
+        return bloomFilters;
+    }
+
+    // 没有注册布隆过滤器的前缀， 一律放行
+    private boolean mightContain(String keyPrefix, Object id) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter == null || bloomFilter.mightContain(id);
+    }
+
+    private void reportFalsePositive(String keyPrefix) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter != null) {
+            bloomFilter.reportFalsePositive();
+        }
+    }
+
+    // 删除缓存： 版本号加1， 删除redis， 并且广播给所有节点删除本地缓存
+    // 过CACHE_DELAY_DELETE毫秒再删一次， 防止主从延迟期间从库读到旧数据的重建又把旧值写回去
+    public void delete(String key) {
+        invalidate(key);
+        DELAY_DELETE_EXECUTOR.schedule(() -> {
+            try {
+                invalidate(key);
+            } catch (Exception e) {
+                log.error("延迟删除缓存失败: {}", key, e);
+            }
+        }, RedisConstants.CACHE_DELAY_DELETE, TimeUnit.MILLISECONDS);
+    }
+
+    private void invalidate(String key) {
+        // 版本号加1以后， 正在进行的重建（读到的是旧版本号）就写不进去了
+        stringRedisTemplate.opsForValue().increment(RedisConstants.CACHE_VERSION_KEY + key);
+        stringRedisTemplate.delete(key);
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    // 缓存的当前版本号， 重建之前（查数据库之前）读
+    public long version(String key) {
+        String version = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_VERSION_KEY + key);
+        return version == null ? 0 : Long.parseLong(version);
+    }
+
+    // 版本号还是重建之前读到的那个才写， 返回是否写成功； ttlMillis为0表示不过期（逻辑过期）
+    private boolean setIfVersion(String key, long version, byte[] value, long ttlMillis) {
+        Long result = stringRedisTemplate.execute(VERSIONED_SET_SCRIPT, RedisSerializer.byteArray(), new GenericToStringSerializer<>(Long.class),
+                Arrays.asList(key, RedisConstants.CACHE_VERSION_KEY + key),
+                String.valueOf(version).getBytes(StandardCharsets.UTF_8), value, String.valueOf(ttlMillis).getBytes(StandardCharsets.UTF_8));
+        return result != null && result == 1L;
+    }
+
+    // 各级缓存的命中统计， key是前缀
+    public Map<String, Map<String, Long>> stats() {
+        Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+        localCaches.forEach((keyPrefix, cache) -> {
+            Map<String, Long> tier = stats.computeIfAbsent(keyPrefix, k -> new LinkedHashMap<>());
+            tier.put("localHit", cache.getHitCount());
+            tier.put("localMiss", cache.getMissCount());
+            tier.put("localSize", (long) cache.size());
+        });
+        redisHitCount.forEach((keyPrefix, count) ->
+                stats.computeIfAbsent(keyPrefix, k -> new LinkedHashMap<>()).put("redisHit", count.sum()));
+        redisMissCount.forEach((keyPrefix, count) ->
+                stats.computeIfAbsent(keyPrefix, k -> new LinkedHashMap<>()).put("redisMiss", count.sum()));
+        return stats;
+    }
+
+    // 查本地缓存， 没有开启或者没有命中都返回null
+    // 本地缓存没命中就要去读redis了， 顺便记录一次访问， 热点key再看看热点副本
+    private <R> R getLocal(String keyPrefix, String key, Class<R> type) {
+        LRUCache<String, Object> cache = localCaches.get(keyPrefix);
+        if (cache != null) {
+            // 不刷新访问时间，ttl从写入开始算
+            Object value = cache.get(key, false);
+            if (type.isInstance(value)) {
+                return type.cast(value);
+            }
+        }
+        if (!hotKeyDetector.record(key)) {
+            return null;
+        }
+        Object value = hotKeyDetector.getLocal(key);
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    private void putLocal(String keyPrefix, String key, Object value) {
+        if (value == null) {
+            return;
+        }
+        LRUCache<String, Object> cache = localCaches.get(keyPrefix);
+        if (cache != null) {
+            cache.put(key, value);
+        }
+        // 热点key放一份到热点副本， 没开本地缓存的前缀也能少读redis
+        if (hotKeyDetector.isHot(key)) {
+            hotKeyDetector.putLocal(key, value);
+        }
+    }
+
+    private void evictLocal(String key) {
+        localCaches.forEach((keyPrefix, cache) -> {
+            if (key.startsWith(keyPrefix)) {
+                cache.remove(key);
+            }
+        });
+        hotKeyDetector.evict(key);
+    }
+
+    private void recordRedis(String keyPrefix, boolean hit) {
+        (hit ? redisHitCount : redisMissCount).computeIfAbsent(keyPrefix, k -> new LongAdder()).increment();
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
@@ -31,87 +309,694 @@ public class CacheClient {
 
     // 逻辑过期
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 设置过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        // 设置过期时间， 按这个前缀的编码器编码
+        byte[] bytes = encodeWithLogicalExpire(key, value, time, unit);
         // 写redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.stringCommands().set(rawKey(key), bytes));
+    }
+
+    // 逻辑过期， 带版本号： 版本号还是查数据库之前读到的那个才写， 返回是否写成功
+    public boolean setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, long version) {
+        return setIfVersion(key, version, encodeWithLogicalExpire(key, value, time, unit), 0);
+    }
+
+    private byte[] encodeWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        return codecOf(key).encode(value, System.currentTimeMillis() + jitter(key, unit.toMillis(time)));
+    }
+
+    // 给某个key前缀的逻辑过期时间加上随机抖动， 比如0.1表示在ttl的基础上随机多0%~10%
+    // 同一批预热的数据就不会在同一时刻一起过期
+    public void setTtlJitter(String keyPrefix, double ratio) {
+        ttlJitters.put(keyPrefix, ratio);
+    }
+
+    private long jitter(String key, long ttlMillis) {
+        for (Map.Entry<String, Double> entry : ttlJitters.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return ttlMillis + (long) (ttlMillis * entry.getValue() * ThreadLocalRandom.current().nextDouble());
+            }
+        }
+        return ttlMillis;
+    }
+
+    // 给某个key前缀指定逻辑过期数据的编码器， 没有指定的用原来的json格式
+    public void setCodec(String keyPrefix, CacheCodec codec) {
+        codecs.put(keyPrefix, codec);
+    }
+
+    private CacheCodec codecOf(String key) {
+        for (Map.Entry<String, CacheCodec> entry : codecs.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return JsonCacheCodec.INSTANCE;
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey(key)));
     }
 
     // 缓存穿透
     public <R, ID> R queryWithCacheThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback, Long time, TimeUnit unit) {
+        // 0. 布隆过滤器判断不存在， 直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        // 0. 先查本地缓存
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+            return local;
+        }
         // 1. 先尝试从redis读取缓存
-        String json = stringRedisTemplate.opsForValue().get(keyPrefix + id);
+        String json = stringRedisTemplate.opsForValue().get(key);
+        recordRedis(keyPrefix, json != null);
         // 2. 如果有直接返回
         if (StrUtil.isNotBlank(json)) {
-            // 返回之前， 要转化为java对象
-            return JSONUtil.toBean(json, type);
+            metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+            // 返回之前， 要转化为java对象， 并放入本地缓存
+            R r = JSONUtil.toBean(json, type);
+            putLocal(keyPrefix, key, r);
+            return r;
         }
         // 解决缓存穿透：如果是空值， 直接返回，空字符串是!=null的， 所以满足条件会进来
         // 因为前面已经判断过了， 能够走下来的要么是空字符串， 要么是null
         if (json != null) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.NULL_HIT);
             return null;
         }
-        // 3. 如果没有取数据库读取
+        metrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+        // 3. 如果没有取数据库读取， 读之前先记下版本号
+        long version = version(key);
+        long start = System.nanoTime();
         R r = dbCallback.apply(id);
         // 4. 数据库没有返回404
         if (r == null) {
+            // 布隆过滤器放行了但是数据库没有， 记一次误判
+            reportFalsePositive(keyPrefix);
             // 解决缓存穿透：如果是空值， 把空值写入redis缓存， 并且设置过期时间
-            stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setIfVersion(key, version, new byte[0], nullTtl(keyPrefix));
+            metrics.recordRebuild(keyPrefix, start);
 //            return Result.fail("商品不存在");
             return null;
         }
         // 5 数据库有，返回数据， 并且写入redis缓存, 写入的时候， 注意要把java对象转化为json字符串
-        this.set(keyPrefix + id, r, time, unit);
+        // 期间数据被更新过（版本号变了）就不写， 这次返回的也不放本地缓存
+        if (setIfVersion(key, version, JSONUtil.toJsonStr(r).getBytes(StandardCharsets.UTF_8), unit.toMillis(time))) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.REBUILT);
+            putLocal(keyPrefix, key, r);
+        }
+        metrics.recordRebuild(keyPrefix, start);
         return r;
     }
 
-    // 线程池
-    private static final ExecutorService CACHE_REBUILD_POOL = Executors.newFixedThreadPool(10);
+    // 缓存直接可以返回给http的响应： 存的是响应体json的gzip压缩字节
+    // 命中的时候不做任何反序列化， 原样写给客户端； 没命中用loader查出响应对象， 序列化 + 压缩以后写入redis
+    // loader返回null表示这次的响应不能缓存（比如不存在）， 这时候也返回null， 调用方走原来的逻辑
+    public <ID> byte[] queryGzip(String keyPrefix, ID id, Function<ID, Object> loader, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 1. 先查redis， 命中直接返回
+        byte[] bytes = getRaw(key);
+        recordRedis(keyPrefix, bytes != null);
+        if (bytes != null) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+            return bytes;
+        }
+        metrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+        // 2. 没命中， 同一个JVM里只有一个线程去生成
+        return singleFlight.execute(key, () -> {
+            long version = version(key);
+            long start = System.nanoTime();
+            Object response = loader.apply(id);
+            if (response == null) {
+                return null;
+            }
+            byte[] gzip;
+            try {
+                gzip = ZipUtil.gzip(objectMapper.writeValueAsBytes(response));
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException(e);
+            }
+            if (setIfVersion(key, version, gzip, unit.toMillis(time))) {
+                metrics.record(keyPrefix, CacheMetrics.Outcome.REBUILT);
+            }
+            metrics.recordRebuild(keyPrefix, start);
+            return gzip;
+        }, RedisConstants.CACHE_REBUILD_WAIT, TimeUnit.MILLISECONDS, () -> {
+            // 等超时了返回null， 调用方走不压缩的正常查询
+            metrics.record(keyPrefix, CacheMetrics.Outcome.WAIT_TIMEOUT);
+            return null;
+        });
+    }
 
     // 缓存击穿： 用逻辑过期
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback, Long time, TimeUnit unit) {
+        return queryWithLogicalExpire(keyPrefix, id, type, dbCallback, time, unit, false);
+    }
+
+    // 缓存击穿： 逻辑过期 + 概率提前刷新（XFetch）
+    // 离过期越近、重建越慢， 提前刷新的概率越大， 这样大部分数据在过期之前就重建好了， 不会同一时刻一起过期
+    public <R, ID> R queryWithEarlyRefresh(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback, Long time, TimeUnit unit) {
+        return queryWithLogicalExpire(keyPrefix, id, type, dbCallback, time, unit, true);
+    }
+
+    private <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback, Long time, TimeUnit unit, boolean earlyRefresh) {
+        // 0. 布隆过滤器判断不存在， 直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        // 0. 先查本地缓存， 本地缓存里只放未过期的数据
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+            return local;
+        }
         // 1. 先尝试从redis读取缓存
-        String json = stringRedisTemplate.opsForValue().get(keyPrefix + id);
-        // 2. 如果有直接返回
-        if (StrUtil.isBlank(json)) {
+        byte[] bytes = getRaw(key);
+        recordRedis(keyPrefix, bytes != null);
+        // 2. 空值说明数据库也没有
+        if (bytes != null && bytes.length == 0) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.NULL_HIT);
             return null;
         }
-        // 3. 命中需要把Json,反序列化为java对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 2.1 没有预热过的key（或者被删掉了）， 同一个JVM里只有一个线程去查数据库并写入， 不存在的id已经被布隆过滤器挡掉了
+        if (bytes == null) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+            return singleFlight.execute(key, () -> loadWithLogicalExpire(keyPrefix, id, dbCallback, time, unit),
+                    RedisConstants.CACHE_REBUILD_WAIT, TimeUnit.MILLISECONDS, () -> loadOnWaitTimeout(keyPrefix, id, dbCallback));
+        }
+        // 3. 先只读头部的过期时间， 再反序列化为java对象（兼容还没迁移的json格式）
+        CacheCodec codec = CacheCodec.detect(bytes);
+        long expireAt = codec.readExpireAt(bytes);
+        long now = System.currentTimeMillis();
+        R r = codec.decode(bytes, type);
+        if (r == null) {
+            // 格式对不上（实体类改了字段）， 重建一份新的， 这次先查数据库
+            metrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+            rebuildAsync(keyPrefix, key, id, dbCallback, time, unit);
+            return dbCallback.apply(id);
+        }
         // 4. 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 5. 未过期， 直接返回店铺信息
+        if (expireAt > now) {
+            // 4.1 还没过期， 但是抽中了提前刷新， 后台重建， 这次照样返回
+            if (earlyRefresh && shouldRefreshEarly(keyPrefix, expireAt, now)) {
+                rebuildAsync(keyPrefix, key, id, dbCallback, time, unit);
+            }
+            // 5. 未过期， 放入本地缓存， 直接返回店铺信息
+            metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+            putLocal(keyPrefix, key, r);
             return r;
         }
         // 6. 过期了就缓存重建
-        // 6.1 获取互斥锁
-        boolean isLock = tryLock(RedisConstants.LOCK_SHOP_KEY + id);
-        // 6.2 成功就开启独立线程进行缓存重建 (推荐使用线程池的方式)
-        if (isLock) {
-            // 提交一个任务到线程池
-            CACHE_REBUILD_POOL.submit(() -> {
+        metrics.record(keyPrefix, CacheMetrics.Outcome.STALE);
+        rebuildAsync(keyPrefix, key, id, dbCallback, time, unit);
+        // 6.3 失败就返回旧数据
+        return r;
+    }
+
+    // 逻辑过期的key在redis里没有： 查数据库， 带版本号写入（不设置redis的过期时间）， 数据库没有就写空值
+    private <R, ID> R loadWithLogicalExpire(String keyPrefix, ID id, Function<ID, R> dbCallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        long version = version(key);
+        long start = System.nanoTime();
+        R r = dbCallback.apply(id);
+        if (r == null) {
+            reportFalsePositive(keyPrefix);
+            setIfVersion(key, version, new byte[0], nullTtl(keyPrefix));
+        } else if (setIfVersion(key, version, encodeWithLogicalExpire(key, r, time, unit), 0)) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.REBUILT);
+            putLocal(keyPrefix, key, r);
+        }
+        recordRebuildCost(keyPrefix, metrics.recordRebuild(keyPrefix, start));
+        return r;
+    }
+
+    // XFetch: now - 重建耗时 * beta * ln(random) >= 过期时间 就提前刷新
+    private boolean shouldRefreshEarly(String keyPrefix, long expireAt, long now) {
+        double cost = rebuildCosts.getOrDefault(keyPrefix, 0D);
+        // 还没测到过重建耗时， 不提前刷新
+        if (cost <= 0) {
+            return false;
+        }
+        double random = 1 - ThreadLocalRandom.current().nextDouble();
+        return now - cost * RedisConstants.CACHE_EARLY_REFRESH_BETA * Math.log(random) >= expireAt;
+    }
+
+    private void recordRebuildCost(String keyPrefix, long millis) {
+        rebuildCosts.merge(keyPrefix, (double) millis, (old, sample) -> old * 0.8 + sample * 0.2);
+    }
+
+    // 逻辑过期的数据过期了， 交给重建线程池
+    // 本JVM里这个key已经在重建了就不再提交， 也就不会再去redis抢锁； 队列满了调用方照样返回旧数据
+    private <R, ID> void rebuildAsync(String keyPrefix, String key, ID id, Function<ID, R> dbCallback, Long time, TimeUnit unit) {
+        rebuildAsync(keyPrefix, key, id, dbCallback, time, unit, true);
+    }
+
+    // callerRuns为false的时候， 队列满了也不在当前线程重建（异步查询的回调线程）
+    private <R, ID> void rebuildAsync(String keyPrefix, String key, ID id, Function<ID, R> dbCallback, Long time, TimeUnit unit, boolean callerRuns) {
+        Runnable task = () -> {
+            // 6.1 获取互斥锁， 防止其他节点同时重建
+            boolean isLock = tryLock(lockKey(key));
+            // 6.2 成功就重建
+            if (!isLock) {
+                metrics.record(keyPrefix, CacheMetrics.Outcome.LOCK_LOST);
+                return;
+            }
+            try {
+                // 重建缓存， 查数据库之前先记下版本号
+                long version = version(key);
+                long start = System.nanoTime();
+                // 先查数据库
+                R r1 = dbCallback.apply(id);
+                // 数据库里已经没有了（店铺被删了）， 写空值， 过nullTtl自己过期， 旧数据不会一直返回
+                if (r1 == null) {
+                    reportFalsePositive(keyPrefix);
+                    setIfVersion(key, version, new byte[0], nullTtl(keyPrefix));
+                    recordRebuildCost(keyPrefix, metrics.recordRebuild(keyPrefix, start));
+                    return;
+                }
+                // 期间数据被更新过， 缓存已经删掉了， 不能再把旧数据写回去
+                if (setIfVersion(key, version, encodeWithLogicalExpire(key, r1, time, unit), 0)) {
+                    metrics.record(keyPrefix, CacheMetrics.Outcome.REBUILT);
+                }
+                recordRebuildCost(keyPrefix, metrics.recordRebuild(keyPrefix, start));
+            } finally {
+                // 释放锁
+                unLock(lockKey(key));
+            }
+        };
+        if (callerRuns) {
+            rebuildExecutor.submit(key, task);
+        } else {
+            rebuildExecutor.submit(key, task, false);
+        }
+    }
+
+    // 缓存击穿： 用互斥锁
+    // 同一个JVM里只有一个线程（leader）去抢redis的锁并重建， 其他线程等leader的结果， 最多等CACHE_REBUILD_WAIT
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback, Long time, TimeUnit unit) {
+        // 0. 布隆过滤器判断不存在， 直接返回
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        // 0. 先查本地缓存
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+            return local;
+        }
+        // 1. 先尝试从redis读取缓存
+        String json = stringRedisTemplate.opsForValue().get(key);
+        recordRedis(keyPrefix, json != null);
+        // 2. 如果有直接返回， 空字符串说明数据库也没有
+        if (json != null) {
+            metrics.record(keyPrefix, json.isEmpty() ? CacheMetrics.Outcome.NULL_HIT : CacheMetrics.Outcome.HIT);
+            return decodeAndCache(keyPrefix, key, json, type);
+        }
+        metrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+        // 3. 缓存重建
+        return singleFlight.execute(key, () -> rebuildWithMutex(keyPrefix, id, type, dbCallback, time, unit),
+                RedisConstants.CACHE_REBUILD_WAIT, TimeUnit.MILLISECONDS, () -> loadOnWaitTimeout(keyPrefix, id, dbCallback));
+    }
+
+    // 等leader重建超时了（数据库慢）， 自己直接查数据库返回， 不写缓存， 缓存交给leader写
+    private <R, ID> R loadOnWaitTimeout(String keyPrefix, ID id, Function<ID, R> dbCallback) {
+        metrics.record(keyPrefix, CacheMetrics.Outcome.WAIT_TIMEOUT);
+        return dbCallback.apply(id);
+    }
+
+    // leader执行： 抢redis的锁， 抢到就查数据库写缓存， 抢不到说明别的节点在重建， 等它写好缓存
+    private <R, ID> R rebuildWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        String lockKey = lockKey(key);
+        for (int i = 0; i < RedisConstants.CACHE_REBUILD_RETRY; i++) {
+            // 3.1 获取互斥锁
+            if (tryLock(lockKey)) {
                 try {
-                    // 重建缓存
-                    // 先查数据库
-                    R r1 = dbCallback.apply(id);
-                    this.setWithLogicalExpire(keyPrefix + id, r1, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    // 3.2 拿到锁再查一次缓存， 可能刚刚被别人重建好了
+                    String json = stringRedisTemplate.opsForValue().get(key);
+                    if (json != null) {
+                        return decodeAndCache(keyPrefix, key, json, type);
+                    }
+                    // 3.3 查询数据库，并写入
+                    return loadAndCache(keyPrefix, id, dbCallback, time, unit);
                 } finally {
-                    // 释放锁
-                    unLock(RedisConstants.LOCK_SHOP_KEY + id);
+                    // 释放互斥锁
+                    unLock(lockKey);
                 }
-            });
+            }
+            if (i == 0) {
+                metrics.record(keyPrefix, CacheMetrics.Outcome.LOCK_LOST);
+            }
+            // 3.4 别的节点在重建， 等一下再看缓存
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (json != null) {
+                return decodeAndCache(keyPrefix, key, json, type);
+            }
         }
-        // 6.3 失败就返回旧数据
+        // 4. 别的节点一直没重建好， 直接查数据库， 不写缓存
+        return dbCallback.apply(id);
+    }
+
+    // 缓存里的json转成java对象， 空字符串是缓存的空值
+    private <R> R decodeAndCache(String keyPrefix, String key, String json, Class<R> type) {
+        if (json.isEmpty()) {
+            return null;
+        }
+        R r = JSONUtil.toBean(json, type);
+        putLocal(keyPrefix, key, r);
+        return r;
+    }
+
+    // 查数据库并写缓存， 数据库没有就写空值
+    private <R, ID> R loadAndCache(String keyPrefix, ID id, Function<ID, R> dbCallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        long version = version(key);
+        long start = System.nanoTime();
+        R r = dbCallback.apply(id);
+        if (r == null) {
+            reportFalsePositive(keyPrefix);
+            setIfVersion(key, version, new byte[0], nullTtl(keyPrefix));
+            metrics.recordRebuild(keyPrefix, start);
+            return null;
+        }
+        if (setIfVersion(key, version, JSONUtil.toJsonStr(r).getBytes(StandardCharsets.UTF_8), unit.toMillis(time))) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.REBUILT);
+            putLocal(keyPrefix, key, r);
+        }
+        metrics.recordRebuild(keyPrefix, start);
         return r;
     }
 
+    // ------------------------------ 异步api ------------------------------
+    // 读写redis用lettuce的异步命令， 回调切到单独的回调线程池（不能占用lettuce的io线程）， 回调里只做反序列化这种很快的事情
+    // 查数据库、抢锁这些阻塞的操作都交给重建线程池， 队列满了直接失败或者返回旧数据， 不会在回调线程里执行
+
+    // 缓存穿透（异步）
+    public <R, ID> CompletableFuture<R> queryWithCacheThroughAsync(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback, Long time, TimeUnit unit) {
+        // 0. 布隆过滤器和本地缓存， 都在内存里， 直接判断
+        if (!mightContain(keyPrefix, id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String key = keyPrefix + id;
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+            return CompletableFuture.completedFuture(local);
+        }
+        // 1. 异步读redis
+        return getRawAsync(key).thenComposeAsync(bytes -> {
+            recordRedis(keyPrefix, bytes != null);
+            // 2. 命中了， 空字符串是空值
+            if (bytes != null) {
+                metrics.record(keyPrefix, bytes.length == 0 ? CacheMetrics.Outcome.NULL_HIT : CacheMetrics.Outcome.HIT);
+                return CompletableFuture.completedFuture(decodeAndCache(keyPrefix, key, new String(bytes, StandardCharsets.UTF_8), type));
+            }
+            // 3. 没命中， 到线程池里查数据库， 带版本号写回
+            metrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+            return rebuildExecutor.supply(() -> loadAndCache(keyPrefix, id, dbCallback, time, unit));
+        }, rebuildExecutor.callbackExecutor());
+    }
+
+    // 缓存击穿： 互斥锁（异步）， 命中的时候完全不占线程， 没命中的时候只有leader在重建线程池里走同步的互斥锁逻辑， 其他请求共享leader的future
+    public <R, ID> CompletableFuture<R> queryWithMutexAsync(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback, Long time, TimeUnit unit) {
+        if (!mightContain(keyPrefix, id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String key = keyPrefix + id;
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+            return CompletableFuture.completedFuture(local);
+        }
+        return getRawAsync(key).thenComposeAsync(bytes -> {
+            recordRedis(keyPrefix, bytes != null);
+            if (bytes != null) {
+                metrics.record(keyPrefix, bytes.length == 0 ? CacheMetrics.Outcome.NULL_HIT : CacheMetrics.Outcome.HIT);
+                return CompletableFuture.completedFuture(decodeAndCache(keyPrefix, key, new String(bytes, StandardCharsets.UTF_8), type));
+            }
+            metrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+            return singleFlight.<R>executeAsync(key, () -> rebuildWithMutex(keyPrefix, id, type, dbCallback, time, unit), rebuildExecutor.executor());
+        }, rebuildExecutor.callbackExecutor());
+    }
+
+    // 缓存击穿： 逻辑过期（异步）， 过期了照样返回旧数据， 重建本来就是后台执行的
+    public <R, ID> CompletableFuture<R> queryWithLogicalExpireAsync(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback, Long time, TimeUnit unit) {
+        return queryWithLogicalExpireAsync(keyPrefix, id, type, dbCallback, time, unit, false);
+    }
+
+    // 缓存击穿： 逻辑过期 + 概率提前刷新（异步）
+    public <R, ID> CompletableFuture<R> queryWithEarlyRefreshAsync(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback, Long time, TimeUnit unit) {
+        return queryWithLogicalExpireAsync(keyPrefix, id, type, dbCallback, time, unit, true);
+    }
+
+    private <R, ID> CompletableFuture<R> queryWithLogicalExpireAsync(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbCallback, Long time, TimeUnit unit, boolean earlyRefresh) {
+        if (!mightContain(keyPrefix, id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String key = keyPrefix + id;
+        R local = getLocal(keyPrefix, key, type);
+        if (local != null) {
+            metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+            return CompletableFuture.completedFuture(local);
+        }
+        return getRawAsync(key).thenComposeAsync(bytes -> {
+            recordRedis(keyPrefix, bytes != null);
+            if (bytes != null && bytes.length == 0) {
+                metrics.record(keyPrefix, CacheMetrics.Outcome.NULL_HIT);
+                return CompletableFuture.completedFuture(null);
+            }
+            // 没有预热过的key， 只有leader在重建线程池里查数据库并写入， 其他请求共享leader的future
+            if (bytes == null) {
+                metrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+                return singleFlight.<R>executeAsync(key, () -> loadWithLogicalExpire(keyPrefix, id, dbCallback, time, unit), rebuildExecutor.executor());
+            }
+            CacheCodec codec = CacheCodec.detect(bytes);
+            long expireAt = codec.readExpireAt(bytes);
+            long now = System.currentTimeMillis();
+            R r = codec.decode(bytes, type);
+            if (r == null) {
+                // 格式对不上， 后台重建， 这次到线程池里查数据库
+                metrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+                rebuildAsync(keyPrefix, key, id, dbCallback, time, unit, false);
+                return rebuildExecutor.supply(() -> dbCallback.apply(id));
+            }
+            if (expireAt > now) {
+                if (earlyRefresh && shouldRefreshEarly(keyPrefix, expireAt, now)) {
+                    rebuildAsync(keyPrefix, key, id, dbCallback, time, unit, false);
+                }
+                metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+                putLocal(keyPrefix, key, r);
+                return CompletableFuture.completedFuture(r);
+            }
+            metrics.record(keyPrefix, CacheMetrics.Outcome.STALE);
+            rebuildAsync(keyPrefix, key, id, dbCallback, time, unit, false);
+            return CompletableFuture.completedFuture(r);
+        }, rebuildExecutor.callbackExecutor());
+    }
+
+    private CompletableFuture<byte[]> getRawAsync(String key) {
+        return reactiveStringRedisTemplate
+                .execute(connection -> connection.stringCommands().get(ByteBuffer.wrap(rawKey(key))))
+                .next()
+                .map(buffer -> {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    return bytes;
+                })
+                .toFuture();
+    }
+
+    // 批量查询（缓存穿透的写法）： 一次mget， 没命中的一次查数据库， 再一次pipeline回写， 结果按ids的顺序返回
+    public <R, ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, List<R>> dbBatchCallback,
+                                      Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, dbBatchCallback, idGetter, false, time, unit);
+    }
+
+    // 批量查询（逻辑过期的写法）： 过期的数据照样返回， 再单独异步重建
+    public <R, ID> List<R> queryBatchWithLogicalExpire(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, List<R>> dbBatchCallback,
+                                                       Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, dbBatchCallback, idGetter, true, time, unit);
+    }
+
+    // 批量查询（逻辑过期的写法）， 过期时间按这个前缀配置的策略
+    public <R, ID> List<R> queryBatchWithLogicalExpire(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, List<R>> dbBatchCallback,
+                                                       Function<R, ID> idGetter) {
+        return queryBatch(keyPrefix, ids, type, dbBatchCallback, idGetter, true, policyOf(keyPrefix).getTtl().toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private <R, ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, List<R>> dbBatchCallback,
+                                       Function<R, ID> idGetter, boolean logicalExpire, Long time, TimeUnit unit) {
+        Object[] results = new Object[ids.size()];
+        // 1. 先过布隆过滤器和本地缓存， 剩下的才需要查redis
+        List<Integer> redisIndexes = new ArrayList<>(ids.size());
+        List<String> redisKeys = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            ID id = ids.get(i);
+            if (!mightContain(keyPrefix, id)) {
+                continue;
+            }
+            String key = keyPrefix + id;
+            R local = getLocal(keyPrefix, key, type);
+            if (local != null) {
+                metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+                results[i] = local;
+                continue;
+            }
+            redisIndexes.add(i);
+            redisKeys.add(key);
+        }
+        // 2. 一次mget查redis
+        List<Integer> missIndexes = new ArrayList<>();
+        if (!redisKeys.isEmpty()) {
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                    connection.stringCommands().mGet(redisKeys.stream().map(CacheClient::rawKey).toArray(byte[][]::new)));
+            for (int j = 0; j < redisKeys.size(); j++) {
+                int i = redisIndexes.get(j);
+                byte[] value = values == null ? null : values.get(j);
+                recordRedis(keyPrefix, value != null);
+                if (value == null) {
+                    metrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+                    missIndexes.add(i);
+                    continue;
+                }
+                // 空字符串说明数据库里也没有
+                if (value.length == 0) {
+                    metrics.record(keyPrefix, CacheMetrics.Outcome.NULL_HIT);
+                    continue;
+                }
+                if (!logicalExpire) {
+                    metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+                    R r = JSONUtil.toBean(new String(value, StandardCharsets.UTF_8), type);
+                    putLocal(keyPrefix, redisKeys.get(j), r);
+                    results[i] = r;
+                    continue;
+                }
+                CacheCodec codec = CacheCodec.detect(value);
+                R r = codec.decode(value, type);
+                if (r == null) {
+                    // 格式对不上， 当作没命中
+                    metrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+                    missIndexes.add(i);
+                    continue;
+                }
+                results[i] = r;
+                if (codec.readExpireAt(value) > System.currentTimeMillis()) {
+                    metrics.record(keyPrefix, CacheMetrics.Outcome.HIT);
+                    putLocal(keyPrefix, redisKeys.get(j), r);
+                } else {
+                    metrics.record(keyPrefix, CacheMetrics.Outcome.STALE);
+                    // 过期了， 先返回旧数据， 再异步重建这一条
+                    rebuildAsync(keyPrefix, redisKeys.get(j), ids.get(i), id -> singleOrNull(dbBatchCallback.apply(Collections.singletonList(id))), time, unit);
+                }
+            }
+        }
+        // 3. 没命中的一次查数据库， 再一次pipeline回写redis
+        if (!missIndexes.isEmpty()) {
+            List<ID> missIds = missIndexes.stream().map(ids::get).collect(Collectors.toList());
+            Map<ID, R> dbMap = loadBatch(keyPrefix, missIds, dbBatchCallback, idGetter, logicalExpire, time, unit);
+            for (int i : missIndexes) {
+                results[i] = dbMap.get(ids.get(i));
+            }
+        }
+        // 4. 按请求的顺序返回， 不存在的跳过
+        List<R> list = new ArrayList<>(ids.size());
+        for (Object result : results) {
+            if (result != null) {
+                list.add(type.cast(result));
+            }
+        }
+        return list;
+    }
+
+    // 批量加载（逻辑过期的写法）： 不读缓存， 直接查数据库并带版本号写入， 预热的时候用
+    // 查数据库期间店铺被更新过（版本号变了）就不写， 不会把旧数据盖在更新后的失效上面
+    public <R, ID> List<R> loadBatchWithLogicalExpire(String keyPrefix, List<ID> ids, Function<List<ID>, List<R>> dbBatchCallback,
+                                                      Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        Map<ID, R> dbMap = loadBatch(keyPrefix, ids, dbBatchCallback, idGetter, true, time, unit);
+        List<R> list = new ArrayList<>(dbMap.size());
+        for (ID id : ids) {
+            R r = dbMap.get(id);
+            if (r != null) {
+                list.add(r);
+            }
+        }
+        return list;
+    }
+
+    // 查数据库之前先一次pipeline读出所有的版本号， 查完带版本号一次pipeline回写， 返回数据库里查到的
+    private <R, ID> Map<ID, R> loadBatch(String keyPrefix, List<ID> ids, Function<List<ID>, List<R>> dbBatchCallback,
+                                         Function<R, ID> idGetter, boolean logicalExpire, Long time, TimeUnit unit) {
+        List<Object> versions = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : ids) {
+                connection.stringCommands().get(rawKey(RedisConstants.CACHE_VERSION_KEY + keyPrefix + id));
+            }
+            return null;
+        });
+        long start = System.nanoTime();
+        Map<ID, R> dbMap = new HashMap<>(ids.size());
+        for (R r : dbBatchCallback.apply(ids)) {
+            dbMap.put(idGetter.apply(r), r);
+        }
+        // 带版本号一次pipeline回写， 空值用策略里的nullTtl， 逻辑过期不设置redis的过期时间
+        byte[] script = VERSIONED_SET_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        List<Object> written = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int j = 0; j < ids.size(); j++) {
+                String key = keyPrefix + ids.get(j);
+                R r = dbMap.get(ids.get(j));
+                byte[] value;
+                long ttlMillis;
+                if (r == null) {
+                    value = new byte[0];
+                    ttlMillis = nullTtl(keyPrefix);
+                } else if (logicalExpire) {
+                    value = encodeWithLogicalExpire(key, r, time, unit);
+                    ttlMillis = 0;
+                } else {
+                    value = JSONUtil.toJsonStr(r).getBytes(StandardCharsets.UTF_8);
+                    ttlMillis = unit.toMillis(time);
+                }
+                Object version = versions.get(j);
+                connection.scriptingCommands().eval(script, ReturnType.INTEGER, 2,
+                        rawKey(key), rawKey(RedisConstants.CACHE_VERSION_KEY + key),
+                        rawKey(version == null ? "0" : version.toString()), value, rawKey(String.valueOf(ttlMillis)));
+            }
+            return null;
+        });
+        for (int j = 0; j < ids.size(); j++) {
+            R r = dbMap.get(ids.get(j));
+            if (r == null) {
+                reportFalsePositive(keyPrefix);
+                continue;
+            }
+            // 写成功了才放本地缓存
+            if (Long.valueOf(1L).equals(written.get(j))) {
+                metrics.record(keyPrefix, CacheMetrics.Outcome.REBUILT);
+                putLocal(keyPrefix, keyPrefix + ids.get(j), r);
+            }
+        }
+        metrics.recordRebuild(keyPrefix, start);
+        return dbMap;
+    }
+
+    private static <R> R singleOrNull(List<R> list) {
+        return list == null || list.isEmpty() ? null : list.get(0);
+    }
+
     // 利用redis里的setnx 来当作互斥锁，因为setnx只有不存在的时候才会设置成功
     // 这里写获取锁和释放锁的两个方法
     public boolean tryLock(String key) {
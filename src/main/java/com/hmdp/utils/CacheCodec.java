@@ -0,0 +1,21 @@
+package com.hmdp.utils;
+
+/**
+ * 逻辑过期缓存的编解码器， 缓存值里要带上逻辑过期时间
+ */
+public interface CacheCodec {
+
+    // 编码， expireAt是逻辑过期时间（毫秒时间戳）
+    byte[] encode(Object value, long expireAt);
+
+    // 只读逻辑过期时间， 不解析数据
+    long readExpireAt(byte[] bytes);
+
+    // 解析数据， 格式对不上返回null， 当作没命中处理
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    // 根据第一个字节判断是哪种格式， 兼容还没迁移的json数据
+    static CacheCodec detect(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == BinaryCacheCodec.MAGIC ? BinaryCacheCodec.INSTANCE : JsonCacheCodec.INSTANCE;
+    }
+}
@@ -0,0 +1,70 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheClient的指标， 按key前缀和结果打标签， 导出到/actuator/prometheus
+ * 命中率 = hit / (hit + null-hit + stale + miss)， 掉下去了就告警
+ */
+@Component
+public class CacheMetrics {
+
+    public enum Outcome {
+        // 命中（本地或者redis）
+        HIT("hit"),
+        // 命中了空值
+        NULL_HIT("null-hit"),
+        // 命中了逻辑过期的旧数据
+        STALE("stale"),
+        // 没命中， 要查数据库
+        MISS("miss"),
+        // 重建完成， 写回了缓存
+        REBUILT("rebuilt"),
+        // 没抢到重建的互斥锁
+        LOCK_LOST("lock-lost"),
+        // 等同一个JVM里的leader重建超时了
+        WAIT_TIMEOUT("wait-timeout");
+
+        private final String tag;
+
+        Outcome(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> rebuildTimers = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    public void record(String keyPrefix, Outcome outcome) {
+        counters.computeIfAbsent(keyPrefix + outcome.tag, k -> Counter.builder("cache.requests")
+                .tag("prefix", keyPrefix)
+                .tag("outcome", outcome.tag)
+                .register(meterRegistry)).increment();
+    }
+
+    // 记录一次重建（查数据库 + 写缓存）的耗时， 返回耗时的毫秒数
+    public long recordRebuild(String keyPrefix, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        rebuildTimer(keyPrefix).record(nanos, TimeUnit.NANOSECONDS);
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private Timer rebuildTimer(String keyPrefix) {
+        return rebuildTimers.computeIfAbsent(keyPrefix, k -> Timer.builder("cache.rebuild.duration")
+                .tag("prefix", keyPrefix)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+}
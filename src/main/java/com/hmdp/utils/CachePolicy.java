@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+
+import java.time.Duration;
+
+/**
+ * 一个key前缀的缓存策略， 在application.yaml的hmdp.cache.policies里配置
+ */
+@Data
+public class CachePolicy {
+
+    public enum Strategy {
+        // 缓存穿透： 缓存空值
+        CACHE_THROUGH,
+        // 缓存击穿： 互斥锁
+        MUTEX,
+        // 缓存击穿： 逻辑过期
+        LOGICAL_EXPIRE,
+        // 缓存击穿： 逻辑过期 + 概率提前刷新
+        EARLY_REFRESH
+    }
+
+    // key前缀， 比如 cache:shop:
+    private String prefix;
+    private Strategy strategy = Strategy.CACHE_THROUGH;
+    // 过期时间（逻辑过期的策略是逻辑过期时间）
+    private Duration ttl = Duration.ofMinutes(30);
+    // 过期时间的随机抖动比例， 0.1表示随机多0%~10%（只对逻辑过期生效）
+    private double ttlJitter;
+    // 空值的过期时间
+    private Duration nullTtl = Duration.ofMinutes(RedisConstants.CACHE_NULL_TTL);
+    // 本地缓存的容量， 0表示不开启本地缓存
+    private int localSize;
+    private Duration localTtl = Duration.ofSeconds(10);
+    // 逻辑过期数据的编码： json 或者 binary
+    private String codec = "json";
+}
@@ -0,0 +1,153 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 缓存重建的线程池， 所有的后台重建共用这一个
+ * 1. 队列有界， 缓存雪崩的时候不会无限堆积任务
+ * 2. 同一个key在排队或者在执行， 就不再提交
+ * 3. 队列满了按配置的策略处理： stale 直接丢掉（调用方继续返回旧数据）， caller-runs 由调用线程自己重建
+ * 4. 重建里的异常在这里记录日志和指标， 不会丢在没人读的Future里
+ * 5. 异步查询的回调单独一个线程池， 不在lettuce的io线程里执行（io线程被阻塞， 整个JVM的redis命令都会卡住）
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    public enum RejectPolicy {
+        STALE, CALLER_RUNS
+    }
+
+    private final ThreadPoolExecutor executor;
+    // 异步查询读完redis以后的回调（反序列化、判断过期、提交重建）， 都是很快的操作
+    private final ExecutorService callbackExecutor;
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final RejectPolicy rejectPolicy;
+
+    private final Timer rebuildTimer;
+    private final Counter failureCounter;
+    private final Counter rejectCounter;
+    private final Counter dedupCounter;
+
+    public CacheRebuildExecutor(MeterRegistry meterRegistry,
+                                @Value("${hmdp.cache.rebuild.threads:10}") int threads,
+                                @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity,
+                                @Value("${hmdp.cache.rebuild.reject-policy:stale}") String rejectPolicy) {
+        AtomicInteger threadId = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        AtomicInteger callbackId = new AtomicInteger();
+        this.callbackExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "cache-callback-" + callbackId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.rejectPolicy = RejectPolicy.valueOf(rejectPolicy.toUpperCase().replace('-', '_'));
+        // 指标： 队列长度、活跃线程、重建耗时、失败、拒绝、去重
+        Gauge.builder("cache.rebuild.queue.size", executor, e -> e.getQueue().size()).register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+        this.rebuildTimer = Timer.builder("cache.rebuild.latency").publishPercentiles(0.5, 0.99).register(meterRegistry);
+        this.failureCounter = Counter.builder("cache.rebuild.failures").register(meterRegistry);
+        this.rejectCounter = Counter.builder("cache.rebuild.rejected").register(meterRegistry);
+        this.dedupCounter = Counter.builder("cache.rebuild.deduplicated").register(meterRegistry);
+    }
+
+    // 提交一个key的重建， 返回是否真的执行了（或者进了队列）
+    public boolean submit(String key, Runnable task) {
+        return submit(key, task, rejectPolicy == RejectPolicy.CALLER_RUNS);
+    }
+
+    // callerRuns为false： 不管配置的是什么策略， 队列满了都不在调用线程里执行（异步查询的回调线程不能阻塞）
+    public boolean submit(String key, Runnable task, boolean callerRuns) {
+        Runnable measured = () -> {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                failureCounter.increment();
+                log.error("缓存重建失败: {}", key, e);
+            } finally {
+                rebuildTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        };
+        try {
+            if (!singleFlight.executeAsync(key, measured, executor)) {
+                dedupCounter.increment();
+                return false;
+            }
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectCounter.increment();
+            if (callerRuns) {
+                // 调用线程自己重建， 也走一遍single flight， 避免同时有两个线程在重建
+                return singleFlight.executeAsync(key, measured, Runnable::run);
+            }
+            // 丢掉这次重建， 调用方返回旧数据， 下次读到过期数据会再提交
+            log.warn("缓存重建队列已满, 继续返回旧数据: {}", key);
+            return false;
+        }
+    }
+
+    // 给异步查询用： 在重建线程池里执行阻塞的操作（查数据库、抢锁）， 不占用请求线程
+    // 队列满了返回失败的future， 不能在调用线程里执行（调用的是回调线程）
+    public <T> CompletableFuture<T> supply(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, executor);
+        } catch (RejectedExecutionException e) {
+            rejectCounter.increment();
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    // 重建线程池， 拒绝的时候记一次指标， 再把异常抛给调用方
+    public Executor executor() {
+        return task -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                rejectCounter.increment();
+                throw e;
+            }
+        };
+    }
+
+    public Executor callbackExecutor() {
+        return callbackExecutor;
+    }
+
+    public int queueSize() {
+        return executor.getQueue().size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        callbackExecutor.shutdown();
+    }
+}
@@ -0,0 +1,18 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 方法的结果按prefix对应的缓存策略缓存， 方法的第一个参数是id， 返回值就是缓存的对象
+ * 方法本身就是查数据库的逻辑， 缓存没命中的时候才会执行
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface HmdpCached {
+
+    // key前缀， 策略在hmdp.cache.policies里配置， 没有配置的前缀按默认策略（缓存空值， 30分钟）
+    String prefix();
+}
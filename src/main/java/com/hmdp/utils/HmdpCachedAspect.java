@@ -0,0 +1,37 @@
+package com.hmdp.utils;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+// @HmdpCached 的切面： 交给CacheClient按前缀的策略查询， 没命中的时候再执行方法本身
+@Aspect
+@Component
+public class HmdpCachedAspect {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Around("@annotation(cached)")
+    public Object around(ProceedingJoinPoint joinPoint, HmdpCached cached) {
+        Object id = joinPoint.getArgs()[0];
+        Class<?> type = ((MethodSignature) joinPoint.getSignature()).getReturnType();
+        return query(cached.prefix(), id, type, joinPoint);
+    }
+
+    private <R> R query(String keyPrefix, Object id, Class<R> type, ProceedingJoinPoint joinPoint) {
+        return cacheClient.query(keyPrefix, id, type, key -> {
+            try {
+                return type.cast(joinPoint.proceed());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,154 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Supplier;
+
+/**
+ * 热点key探测： 用滑动窗口 + count-min sketch 统计每个key在最近一段时间里被读了多少次
+ * 超过阈值的key就是热点key， 它的值会放到本地缓存里（过期时间很短）， 不用每次都去同一个redis分片
+ */
+@Component
+public class HotKeyDetector {
+
+    // sketch的行数和每行的宽度， 宽度越大不同key撞到同一个计数器的概率越小， key多的时候要调大
+    private final int depth;
+    private final int width;
+
+    // 滑动窗口： 每秒一个sketch， 一共HOT_KEY_WINDOW个
+    private final AtomicIntegerArray[] buckets = new AtomicIntegerArray[RedisConstants.HOT_KEY_WINDOW];
+    private volatile long currentSecond;
+
+    // 当前的热点key -> 最近一次判定为热点的时间
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+
+    // 热点key在本地的副本， 超过容量按LRU淘汰， 热点突然变多的时候不会把内存撑爆
+    private final LRUCache<String, Object> localCache;
+
+    public HotKeyDetector(@Value("${hmdp.cache.hot-key.sketch-depth:4}") int depth,
+                          @Value("${hmdp.cache.hot-key.sketch-width:4096}") int width,
+                          @Value("${hmdp.cache.hot-key.local-size:10000}") int localSize) {
+        this.depth = depth;
+        this.width = width;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new AtomicIntegerArray(depth * width);
+        }
+        currentSecond = System.currentTimeMillis() / 1000;
+        this.localCache = CacheUtil.newLRUCache(localSize, RedisConstants.HOT_KEY_LOCAL_TTL);
+    }
+
+    // 记录一次访问， 返回这个key现在是不是热点
+    public boolean record(String key) {
+        AtomicIntegerArray bucket = currentBucket();
+        long[] hash = MurmurHash.hash128(key);
+        for (int i = 0; i < depth; i++) {
+            bucket.incrementAndGet(i * width + index(hash, i));
+        }
+        if (estimate(hash) >= RedisConstants.HOT_KEY_THRESHOLD) {
+            hotKeys.put(key, System.currentTimeMillis());
+            return true;
+        }
+        return hotKeys.containsKey(key);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T getLocal(String localKey) {
+        return (T) localCache.get(localKey, false);
+    }
+
+    public void putLocal(String localKey, Object value) {
+        if (value != null) {
+            localCache.put(localKey, value);
+        }
+    }
+
+    // 读redis之前先记录访问， 热点key优先读本地副本， 没有就用loader读redis， 再放一份到本地
+    // localKey用来区分同一个redis key上的不同读法（比如zset的range和score）
+    public <T> T get(String key, String localKey, Supplier<T> loader) {
+        boolean hot = record(key);
+        if (hot) {
+            T local = getLocal(localKey);
+            if (local != null) {
+                return local;
+            }
+        }
+        T value = loader.get();
+        if (hot) {
+            putLocal(localKey, value);
+        }
+        return value;
+    }
+
+    public void evict(String localKey) {
+        localCache.remove(localKey);
+    }
+
+    // 当前的热点key和窗口内的访问次数（估算值）， 按次数倒序
+    public List<Map<String, Object>> hotKeys() {
+        List<Map<String, Object>> list = new ArrayList<>(hotKeys.size());
+        hotKeys.forEach((key, lastHot) -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", key);
+            item.put("count", estimate(MurmurHash.hash128(key)));
+            item.put("lastHot", lastHot);
+            list.add(item);
+        });
+        list.sort(Comparator.comparing(item -> -((Integer) item.get("count"))));
+        return list;
+    }
+
+    private int index(long[] hash, int row) {
+        return (int) Math.floorMod(hash[0] + row * hash[1], (long) width);
+    }
+
+    // 窗口内所有sketch加起来， 每个sketch取几行里最小的那个
+    private int estimate(long[] hash) {
+        int total = 0;
+        for (AtomicIntegerArray bucket : buckets) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < depth; i++) {
+                min = Math.min(min, bucket.get(i * width + index(hash, i)));
+            }
+            total += min;
+        }
+        return total;
+    }
+
+    // 每过一秒换到下一个sketch， 并清空它（它记录的是一个窗口之前的数据）
+    private AtomicIntegerArray currentBucket() {
+        long second = System.currentTimeMillis() / 1000;
+        if (second != currentSecond) {
+            synchronized (this) {
+                if (second != currentSecond) {
+                    long from = Math.max(currentSecond + 1, second - buckets.length + 1);
+                    for (long s = from; s <= second; s++) {
+                        AtomicIntegerArray bucket = buckets[(int) (s % buckets.length)];
+                        for (int i = 0; i < bucket.length(); i++) {
+                            bucket.set(i, 0);
+                        }
+                    }
+                    currentSecond = second;
+                    // 一个窗口内都没再被判定为热点的key， 移除
+                    long expired = System.currentTimeMillis() - buckets.length * 1000L;
+                    hotKeys.values().removeIf(lastHot -> lastHot < expired);
+                }
+            }
+        }
+        return buckets[(int) (second % buckets.length)];
+    }
+}
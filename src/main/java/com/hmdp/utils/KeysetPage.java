@@ -0,0 +1,102 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 游标分页（keyset）： 不用 LIMIT offset,n， 记住上一页最后一行的排序值和id， 下一页直接从它后面开始查
+ * 配合(排序字段, id)上的索引， 第100页和第1页一样快， 也不用查count
+ * 排序字段只支持数字， 排序值一样的按id， 方向和排序字段一样
+ * 排序字段可以为NULL， 和mysql一样NULL排在最小的位置（从小到大在最前面， 从大到小在最后面）， 游标里记成"null"
+ */
+public class KeysetPage<T> {
+
+    private final List<T> records;
+    // 下一页的游标， 没有下一页了是null
+    private final String cursor;
+
+    private KeysetPage(List<T> records, String cursor) {
+        this.records = records;
+        this.cursor = cursor;
+    }
+
+    public List<T> getRecords() {
+        return records;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * 查一页， 游标为空是第一页， 游标不对返回null
+     *
+     * @param query     查询条件（不要带排序和limit）
+     * @param column    排序字段， 直接按id排就传"id"
+     * @param desc      是不是从大到小
+     * @param sortValue 从查到的对象里取排序值
+     * @param idOf      从查到的对象里取id
+     */
+    public static <T> KeysetPage<T> query(QueryChainWrapper<T> query, String column, boolean desc,
+                                          Function<T, ? extends Number> sortValue, Function<T, Long> idOf,
+                                          String cursor, int size) {
+        // 1. 从上一页的最后一行后面开始
+        if (cursor != null && !cursor.isEmpty()) {
+            Long[] last = decode(cursor);
+            if (last == null) {
+                return null;
+            }
+            if ("id".equals(column)) {
+                query.lt(desc, "id", last[1]).gt(!desc, "id", last[1]);
+            } else if (last[0] == null) {
+                // 上一页停在NULL里面： 从大到小NULL是最后一段， 只剩后面的NULL； 从小到大NULL是第一段， 后面的NULL和所有非NULL
+                if (desc) {
+                    query.and(w -> w.isNull(column).lt("id", last[1]));
+                } else {
+                    query.and(w -> w.isNull(column).gt("id", last[1]).or().isNotNull(column));
+                }
+            } else if (desc) {
+                // 从大到小的时候NULL排在最后， 还没翻到
+                query.and(w -> w.lt(column, last[0]).or().eq(column, last[0]).lt("id", last[1]).or().isNull(column));
+            } else {
+                query.and(w -> w.gt(column, last[0]).or().eq(column, last[0]).gt("id", last[1]));
+            }
+        }
+        // 2. 多查一条， 用来判断还有没有下一页
+        query.orderBy(true, !desc, column);
+        if (!"id".equals(column)) {
+            query.orderBy(true, !desc, "id");
+        }
+        List<T> records = query.last("LIMIT " + (size + 1)).list();
+        if (records.size() <= size) {
+            return new KeysetPage<>(records, null);
+        }
+        records = records.subList(0, size);
+        T last = records.get(size - 1);
+        Number value = sortValue.apply(last);
+        return new KeysetPage<>(records, encode(value == null ? null : value.longValue(), idOf.apply(last)));
+    }
+
+    private static String encode(Long value, long id) {
+        String raw = value + "," + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // 返回{排序值, id}， 排序值是NULL的时候第一个是null
+    private static Long[] decode(String cursor) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(",");
+            if (parts.length != 2) {
+                return null;
+            }
+            Long value = "null".equals(parts[0]) ? null : Long.valueOf(parts[0]);
+            return new Long[]{value, Long.valueOf(parts[1])};
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
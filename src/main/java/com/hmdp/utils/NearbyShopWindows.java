@@ -0,0 +1,213 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.CacheObj;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.entity.Shop;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.function.BiFunction;
+
+/**
+ * 附近店铺的游标分页： 第一页把半径内所有店铺按距离排好序（一个窗口）， 缓存一小段时间
+ * 窗口按 类型 + 位置所在的geohash格子（约150米） 缓存， 后面翻页和附近的其他用户都直接用， 不再重新搜索
+ * 游标里记录 类型、geohash格子、上一页最后一个店铺的距离和id， 翻页的时候在窗口里二分找到位置， 每一页的耗时都一样
+ */
+@Component
+public class NearbyShopWindows {
+
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+    // 7位geohash， 格子大约153米 x 153米
+    private static final int GEOHASH_PRECISION = 7;
+
+    // 数量有上限， 游标里的geohash是客户端传的， 不能让它随便撑大缓存
+    private final LRUCache<String, Window> windows = CacheUtil.newLRUCache(SystemConstants.NEARBY_WINDOW_MAX, SystemConstants.NEARBY_WINDOW_TTL);
+
+    // 一个窗口： 按(距离, id)排好序的店铺， 距离是到格子中心的
+    public static class Window {
+        private final long[] ids;
+        private final double[] distances;
+
+        public Window(long[] ids, double[] distances) {
+            Integer[] order = new Integer[ids.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.<Integer>comparingDouble(i -> distances[i]).thenComparingLong(i -> ids[i]));
+            this.ids = new long[ids.length];
+            this.distances = new double[ids.length];
+            for (int i = 0; i < order.length; i++) {
+                this.ids[i] = ids[order[i]];
+                this.distances[i] = distances[order[i]];
+            }
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        public long id(int i) {
+            return ids[i];
+        }
+
+        public double distance(int i) {
+            return distances[i];
+        }
+
+        public boolean contains(long id) {
+            for (long shopId : ids) {
+                if (shopId == id) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // 排在(distance, id)后面的第一个位置
+        public int after(double distance, long id) {
+            int low = 0, high = ids.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Double.compare(distances[mid], distance);
+                if (cmp < 0 || (cmp == 0 && ids[mid] <= id)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    // 游标
+    public static class Cursor {
+        private final Long typeId;
+        private final String geohash;
+        private final double lastDistance;
+        private final long lastId;
+
+        public Cursor(Long typeId, String geohash, double lastDistance, long lastId) {
+            this.typeId = typeId;
+            this.geohash = geohash;
+            this.lastDistance = lastDistance;
+            this.lastId = lastId;
+        }
+
+        public Long getTypeId() {
+            return typeId;
+        }
+
+        public String getGeohash() {
+            return geohash;
+        }
+
+        // 从这个游标开始， 下一页在窗口里的开始位置
+        public int position(Window window) {
+            return window.after(lastDistance, lastId);
+        }
+
+        public String encode() {
+            String raw = typeId + "," + geohash + "," + lastDistance + "," + lastId;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // 解析失败返回null， geohash的长度和字符也要对， 否则每个不一样的字符串都会搜索一次、缓存一个窗口
+        public static Cursor decode(String token) {
+            try {
+                String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split(",");
+                if (parts.length != 4 || !isGeohash(parts[1])) {
+                    return null;
+                }
+                return new Cursor(Long.valueOf(parts[0]), parts[1], Double.parseDouble(parts[2]), Long.parseLong(parts[3]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    // 取一个窗口， 没有就用loader按格子中心的经纬度搜索一次
+    public Window get(Long typeId, String geohash, BiFunction<Double, Double, Window> loader) {
+        double[] center = center(geohash);
+        return windows.get(typeId + ":" + geohash, false, () -> loader.apply(center[0], center[1]));
+    }
+
+    // 店铺有改动， 作废这个类型的窗口， 以及其他类型里有这个店铺的窗口（店铺换了类型或者删掉了）
+    @EventListener
+    public void onShopChange(ShopChangeEvent event) {
+        Shop shop = event.getShop();
+        String typePrefix = shop == null || shop.getTypeId() == null ? null : shop.getTypeId() + ":";
+        Iterator<CacheObj<String, Window>> iterator = windows.cacheObjIterator();
+        while (iterator.hasNext()) {
+            CacheObj<String, Window> entry = iterator.next();
+            if ((typePrefix != null && entry.getKey().startsWith(typePrefix)) || entry.getValue().contains(event.getShopId())) {
+                windows.remove(entry.getKey());
+            }
+        }
+    }
+
+    private static boolean isGeohash(String geohash) {
+        if (geohash.length() != GEOHASH_PRECISION) {
+            return false;
+        }
+        for (int i = 0; i < geohash.length(); i++) {
+            if (BASE32.indexOf(geohash.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static String geohash(double x, double y) {
+        double[] lon = {-180, 180};
+        double[] lat = {-90, 90};
+        StringBuilder hash = new StringBuilder(GEOHASH_PRECISION);
+        boolean even = true;
+        int bit = 0, ch = 0;
+        while (hash.length() < GEOHASH_PRECISION) {
+            double[] range = even ? lon : lat;
+            double value = even ? x : y;
+            double mid = (range[0] + range[1]) / 2;
+            ch <<= 1;
+            if (value >= mid) {
+                ch |= 1;
+                range[0] = mid;
+            } else {
+                range[1] = mid;
+            }
+            even = !even;
+            if (++bit == 5) {
+                hash.append(BASE32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    // geohash格子的中心 [经度, 纬度]
+    public static double[] center(String geohash) {
+        double[] lon = {-180, 180};
+        double[] lat = {-90, 90};
+        boolean even = true;
+        for (int i = 0; i < geohash.length(); i++) {
+            int ch = BASE32.indexOf(geohash.charAt(i));
+            for (int mask = 16; mask > 0; mask >>= 1) {
+                double[] range = even ? lon : lat;
+                double mid = (range[0] + range[1]) / 2;
+                if ((ch & mask) != 0) {
+                    range[0] = mid;
+                } else {
+                    range[1] = mid;
+                }
+                even = !even;
+            }
+        }
+        return new double[]{(lon[0] + lon[1]) / 2, (lat[0] + lat[1]) / 2};
+    }
+}
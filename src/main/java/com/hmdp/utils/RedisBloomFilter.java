@@ -0,0 +1,350 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 布隆过滤器： redis的bitmap里存一份， 本地内存里镜像一份
+ * 判断的时候只查本地， 不需要访问redis和数据库， 新增的时候两边都写， 并广播给其他节点
+ * 重建是 读数据库 -> 写临时key -> rename， 这期间别的节点新增的元素可能被覆盖掉，
+ * 所以每个节点记下自己最近新增的元素， 收到重建完成的消息以后再补写一遍
+ */
+@Slf4j
+public class RedisBloomFilter {
+
+    private static final String ADD_MESSAGE = "add:";
+    private static final String RELOAD_MESSAGE = "reload";
+    private static final ExecutorService REBUILD_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "bloom-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String key;
+    private final String metaKey;
+    private final StringRedisTemplate stringRedisTemplate;
+    // 期望的误判率
+    private final double fpp;
+    // 重建时的数据来源（比如数据库里所有的id）
+    private final Supplier<Collection<?>> source;
+
+    // 本地镜像， 字节布局和redis的bitmap一样（setbit的offset 0 是第一个字节的最高位）
+    // 重建的时候整体替换， 所以放在一个不可变的对象里
+    private volatile Bits bits;
+
+    private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+    // 已经提交了重建还没执行完， 不再重复提交（新增的时候误判率超了， 每次新增都会触发）
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    // 重建期间新增的元素（包括其他节点广播过来的）， 重建完要补进去
+    private final Set<String> addedWhileRebuilding = ConcurrentHashMap.newKeySet();
+    // 本节点最近新增的元素 -> 新增的时间， 其他节点重建完以后要补写
+    private final Map<String, Long> recentAdds = new ConcurrentHashMap<>();
+
+    // 统计： 被拦截的次数、放行的次数、误判的次数（放行了但是数据库没有）
+    private final LongAdder rejectCount = new LongAdder();
+    private final LongAdder passCount = new LongAdder();
+    private final LongAdder falsePositiveCount = new LongAdder();
+
+    public RedisBloomFilter(String key, double fpp, Supplier<Collection<?>> source, StringRedisTemplate stringRedisTemplate) {
+        this.key = key;
+        this.metaKey = key + ":meta";
+        this.fpp = fpp;
+        this.source = source;
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    // 订阅其他节点的新增和重建消息
+    public void subscribe(RedisMessageListenerContainer listenerContainer) {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            if (RELOAD_MESSAGE.equals(body)) {
+                // 本节点正在重建的话不用加载， 重建完会整体替换
+                if (!rebuilding.get()) {
+                    loadFromRedis();
+                    reapplyRecentAdds();
+                }
+            } else if (body.startsWith(ADD_MESSAGE)) {
+                String value = body.substring(ADD_MESSAGE.length());
+                if (rebuilding.get()) {
+                    addedWhileRebuilding.add(value);
+                }
+                Bits current = bits;
+                if (current != null) {
+                    current.set(value);
+                }
+            }
+        }, new ChannelTopic(key));
+    }
+
+    public boolean mightContain(Object id) {
+        Bits current = bits;
+        // 还没初始化好， 全部放行
+        if (current == null || current.contains(String.valueOf(id))) {
+            passCount.increment();
+            return true;
+        }
+        rejectCount.increment();
+        return false;
+    }
+
+    // 放行了， 但是数据库里没有， 说明误判了
+    public void reportFalsePositive() {
+        falsePositiveCount.increment();
+    }
+
+    public void add(Object id) {
+        String value = String.valueOf(id);
+        purgeRecentAdds();
+        recentAdds.put(value, System.currentTimeMillis());
+        Bits current = bits;
+        if (current == null) {
+            return;
+        }
+        if (rebuilding.get()) {
+            addedWhileRebuilding.add(value);
+        }
+        write(current, value, true);
+        // 4. 数据量涨上来了， 误判率超过期望的两倍就扩容重建
+        if (expectedFpp() > fpp * 2) {
+            rebuildAsync(false);
+        }
+    }
+
+    // 写本地和redis， 再广播给其他节点； count为false表示是补写， 不再计数
+    private void write(Bits current, String value, boolean count) {
+        // 1. 写本地
+        current.set(value);
+        // 2. 写redis， 一次pipeline把所有的位都设置好
+        long[] offsets = current.offsets(value);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.stringCommands().setBit(rawKey, offset, true);
+            }
+            if (count) {
+                connection.hashCommands().hIncrBy(metaKey.getBytes(StandardCharsets.UTF_8), "insertions".getBytes(StandardCharsets.UTF_8), 1);
+            }
+            return null;
+        });
+        if (count) {
+            current.insertions.incrementAndGet();
+        }
+        // 3. 广播给其他节点
+        stringRedisTemplate.convertAndSend(key, ADD_MESSAGE + value);
+    }
+
+    private void purgeRecentAdds() {
+        long expired = System.currentTimeMillis() - RedisConstants.BLOOM_RECENT_ADD_TTL;
+        recentAdds.values().removeIf(time -> time < expired);
+    }
+
+    // 别的节点重建完了， 它读数据库之后本节点新增的元素可能被rename覆盖掉了， 补写一遍
+    private void reapplyRecentAdds() {
+        Bits current = bits;
+        if (current == null) {
+            return;
+        }
+        purgeRecentAdds();
+        for (String value : recentAdds.keySet()) {
+            write(current, value, false);
+        }
+    }
+
+    // 手动重建（运维端点）， 不管当前的误判率
+    public void rebuildAsync() {
+        rebuildAsync(true);
+    }
+
+    // force为false的时候同时只排队一个， 真正执行之前再看一次误判率， 排队期间已经被重建过（本节点或者其他节点）就不用再重建了
+    private void rebuildAsync(boolean force) {
+        if (!force && !pending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            REBUILD_EXECUTOR.submit(() -> {
+                try {
+                    if (force || expectedFpp() > fpp * 2) {
+                        rebuild();
+                    }
+                } catch (Exception e) {
+                    log.error("布隆过滤器重建失败: {}", key, e);
+                } finally {
+                    if (!force) {
+                        pending.set(false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            if (!force) {
+                pending.set(false);
+            }
+            throw e;
+        }
+    }
+
+    // 重建： 根据数据量重新计算大小， 先写到临时key， 再rename， 保证重建过程中读不受影响
+    public void rebuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            Collection<?> ids = source.get();
+            // 1. 按两倍的数据量预留空间， 避免刚建好就要扩容
+            Bits newBits = Bits.create(Math.max(ids.size() * 2L, 1024L), fpp);
+            for (Object id : ids) {
+                newBits.set(String.valueOf(id));
+            }
+            newBits.insertions.set(ids.size());
+            // 2. 写redis： 临时key -> rename， 和meta一起放在一个事务里
+            // 临时key每次重建都不一样， 几个节点同时重建也不会互相覆盖
+            byte[] tmpKey = (key + ":tmp:" + UUID.fastUUID().toString(true)).getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.multi();
+                connection.stringCommands().set(tmpKey, newBits.data);
+                connection.keyCommands().rename(tmpKey, key.getBytes(StandardCharsets.UTF_8));
+                writeMeta(connection, newBits);
+                return connection.exec();
+            });
+            // 3. 替换本地镜像， 再把重建期间新增的（本节点的和其他节点广播过来的）补进去
+            bits = newBits;
+            for (String value : addedWhileRebuilding) {
+                write(newBits, value, true);
+                addedWhileRebuilding.remove(value);
+            }
+            reapplyRecentAdds();
+            // 4. 通知其他节点重新加载
+            stringRedisTemplate.convertAndSend(key, RELOAD_MESSAGE);
+            log.info("布隆过滤器重建完成: {}, 元素{}个, {}位, {}个hash函数, 耗时{}ms",
+                    key, ids.size(), newBits.numBits, newBits.numHashes, System.currentTimeMillis() - start);
+        } finally {
+            rebuilding.set(false);
+        }
+    }
+
+    // 从redis加载到本地， redis里没有就返回false
+    public boolean loadFromRedis() {
+        List<Object> meta = stringRedisTemplate.opsForHash().multiGet(metaKey, Arrays.asList("bits", "hashes", "insertions"));
+        if (meta.contains(null)) {
+            return false;
+        }
+        byte[] data = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8)));
+        long numBits = Long.parseLong(meta.get(0).toString());
+        Bits loaded = new Bits(numBits, Integer.parseInt(meta.get(1).toString()));
+        if (data != null) {
+            // 只有设置过的位redis才会分配， 长度可能比本地短
+            System.arraycopy(data, 0, loaded.data, 0, Math.min(data.length, loaded.data.length));
+        }
+        loaded.insertions.set(Long.parseLong(meta.get(2).toString()));
+        bits = loaded;
+        return true;
+    }
+
+    // 按当前的元素个数估算的误判率 (1 - e^(-kn/m))^k
+    public double expectedFpp() {
+        Bits current = bits;
+        if (current == null) {
+            return 0;
+        }
+        double k = current.numHashes;
+        return Math.pow(1 - Math.exp(-k * current.insertions.get() / current.numBits), k);
+    }
+
+    // 实际观察到的误判率： 误判次数 / 查询不存在的id的次数
+    public double observedFpp() {
+        long falsePositive = falsePositiveCount.sum();
+        long negative = falsePositive + rejectCount.sum();
+        return negative == 0 ? 0 : (double) falsePositive / negative;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Bits current = bits;
+        stats.put("bits", current == null ? 0 : current.numBits);
+        stats.put("hashes", current == null ? 0 : current.numHashes);
+        stats.put("insertions", current == null ? 0 : current.insertions.get());
+        stats.put("pass", passCount.sum());
+        stats.put("reject", rejectCount.sum());
+        stats.put("falsePositive", falsePositiveCount.sum());
+        stats.put("expectedFpp", expectedFpp());
+        stats.put("observedFpp", observedFpp());
+        return stats;
+    }
+
+    private void writeMeta(RedisConnection connection, Bits newBits) {
+        Map<byte[], byte[]> meta = new LinkedHashMap<>();
+        meta.put("bits".getBytes(StandardCharsets.UTF_8), String.valueOf(newBits.numBits).getBytes(StandardCharsets.UTF_8));
+        meta.put("hashes".getBytes(StandardCharsets.UTF_8), String.valueOf(newBits.numHashes).getBytes(StandardCharsets.UTF_8));
+        meta.put("insertions".getBytes(StandardCharsets.UTF_8), String.valueOf(newBits.insertions.get()).getBytes(StandardCharsets.UTF_8));
+        connection.hashCommands().hMSet(metaKey.getBytes(StandardCharsets.UTF_8), meta);
+    }
+
+    private static class Bits {
+        private final long numBits;
+        private final int numHashes;
+        private final byte[] data;
+        private final AtomicLong insertions = new AtomicLong();
+
+        private Bits(long numBits, int numHashes) {
+            this.numBits = numBits;
+            this.numHashes = numHashes;
+            this.data = new byte[(int) ((numBits + 7) >>> 3)];
+        }
+
+        // 根据元素个数和误判率计算位数和hash函数个数
+        private static Bits create(long expectedInsertions, double fpp) {
+            long numBits = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            int numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+            return new Bits(numBits, numHashes);
+        }
+
+        // 两个hash值组合出k个位置
+        private long[] offsets(String value) {
+            long[] hash = MurmurHash.hash128(value);
+            long[] offsets = new long[numHashes];
+            for (int i = 0; i < numHashes; i++) {
+                offsets[i] = Math.floorMod(hash[0] + i * hash[1], numBits);
+            }
+            return offsets;
+        }
+
+        private boolean contains(String value) {
+            for (long offset : offsets(value)) {
+                if ((data[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void set(String value) {
+            for (long offset : offsets(value)) {
+                synchronized (data) {
+                    data[(int) (offset >>> 3)] |= (0x80 >>> (offset & 7));
+                }
+            }
+        }
+    }
+}
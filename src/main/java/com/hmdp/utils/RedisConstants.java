@@ -10,13 +10,44 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_SHOP_GZIP_KEY = "cache:shop-gzip:";
 
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_VERSION_KEY = "cache:ver:";
+    public static final Long CACHE_DELAY_DELETE = 1000L;
+
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final double BLOOM_SHOP_FPP = 0.01;
+    // 本节点最近新增的元素保留多久（毫秒）， 收到重建完成的消息以后要补写一遍
+    public static final Long BLOOM_RECENT_ADD_TTL = 300000L;
+
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final String LOCK_CACHE_KEY = "lock:";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final Long CACHE_REBUILD_WAIT = 3000L;
+    public static final int CACHE_REBUILD_RETRY = 20;
+    public static final double CACHE_EARLY_REFRESH_BETA = 1.0;
+
+    public static final int HOT_KEY_WINDOW = 10;
+    public static final int HOT_KEY_THRESHOLD = 1000;
+    public static final long HOT_KEY_LOCAL_TTL = 3000L;
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    // 没有分片的优惠券在本地记多久（毫秒）， 过了再去redis看一次， 优惠券刚创建的时候不会一直按没分片处理
+    public static final Long SECKILL_SHARDS_MISS_TTL = 1000L;
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_CHANGE_CHANNEL = "shop:change";
+    public static final int SHOP_WARM_UP_CHUNK = 1000;
+    public static final int SHOP_WARM_UP_THREADS = 4;
+    public static final String SHOP_TYPE_VERSION_KEY = "shop-type:ver";
+    public static final String SHOP_TYPE_CHANGE_CHANNEL = "shop-type:change";
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -29,14 +29,28 @@ public class RedisIdWorker {
     public Long nextId(String keyPrefix) {
         // 1. 生成时间戳
         LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        long timestamp = timestamp(now);
 
         // 2. 生成序列号
-        // 2.1 获取当前的日期， 精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        long count = stringRedisTemplate.opsForValue().increment("icr" + keyPrefix + ":" + date);
+        long count = stringRedisTemplate.opsForValue().increment(countKey(keyPrefix, now));
         // 3. 拼接返回(使用位运算)
+        return compose(timestamp, count);
+    }
+
+    // 下面几个方法给在lua脚本里自增序列号的地方用（比如秒杀成功了才生成订单id）
+    // lua的数字是double， 拼不出64位的id， 只能把时间戳和序列号传出来再拼
+    public static long timestamp(LocalDateTime now) {
+        return now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    // 序列号的key， 每天一个
+    public static String countKey(String keyPrefix, LocalDateTime now) {
+        // 获取当前的日期， 精确到天
+        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        return "icr" + keyPrefix + ":" + date;
+    }
+
+    public static long compose(long timestamp, long count) {
         return timestamp << COUNT_BITS | count;
     }
 }
@@ -0,0 +1,163 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀库存
+ * 卖完了的优惠券在每个节点本地记一个标记， 之后的请求直接返回库存不足， 不用再访问redis
+ * 库存分片： 一个优惠券的库存拆成N个key， 下单的订单set也按用户拆成N个
+ * 用户先扣自己那个分片（用户id取模）， 没库存了再依次扣其他分片
+ * 一人一单只看用户自己的订单分片， 不管库存是从哪个分片扣的， 用户都记在自己的分片里， 所以跨分片也不会重复下单
+ * key用hash tag把同一个分片的库存和订单放在一个slot， 不同的分片可以落到不同的redis节点
+ */
+@Component
+public class SeckillStock {
+
+    // 扣减结果
+    public static final int SUCCESS = 0;
+    public static final int SOLD_OUT = 1;
+    public static final int DUPLICATE = 2;
+
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 优惠券id -> 分片数， 创建以后就不会变， 只记分片了的优惠券
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+    // redis里没有分片数的优惠券id（没分片， 或者还没创建）， 只记一小会儿， 数量也有上限（id是请求里传的）
+    private final LRUCache<Long, Boolean> unsharded = CacheUtil.newLRUCache(10000, RedisConstants.SECKILL_SHARDS_MISS_TTL);
+
+    // 已经卖完的优惠券
+    private final Set<Long> soldOut = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void subscribe() {
+        // 其他节点发现卖完了， 消息内容是优惠券id
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                        soldOut.add(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.contains(voucherId);
+    }
+
+    // 脚本返回库存不足的时候调用： 本地先标记上， 再通知其他节点
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.add(voucherId)) {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    // 分片数， 0表示没有分片（用原来的seckill.lua）
+    public int shardCount(Long voucherId) {
+        Integer cached = shardCounts.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        if (unsharded.containsKey(voucherId)) {
+            return 0;
+        }
+        String count = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        if (count == null) {
+            unsharded.put(voucherId, Boolean.TRUE);
+            return 0;
+        }
+        int shards = Integer.parseInt(count);
+        shardCounts.put(voucherId, shards);
+        return shards;
+    }
+
+    // 库存平均分到每个分片， 除不尽的余数给前面几个分片
+    public void init(Long voucherId, int stock, int shards) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < shards; i++) {
+                int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                connection.stringCommands().set(bytes(stockKey(voucherId, i)), bytes(String.valueOf(shardStock)));
+            }
+            connection.stringCommands().set(bytes(RedisConstants.SECKILL_SHARDS_KEY + voucherId), bytes(String.valueOf(shards)));
+            return null;
+        });
+        shardCounts.put(voucherId, shards);
+        unsharded.remove(voucherId);
+    }
+
+    // 扣一个库存， 成功返回扣的是哪个分片（>= 0）， 否则返回 -SOLD_OUT 或者 -DUPLICATE
+    public int deduct(Long voucherId, Long userId, int shards) {
+        int home = home(userId, shards);
+        String user = userId.toString();
+        // 1. 先扣用户自己的分片， 顺便判断一人一单
+        Long result = stringRedisTemplate.execute(SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home)), user);
+        int r = result.intValue();
+        if (r == SUCCESS) {
+            return home;
+        }
+        if (r == DUPLICATE) {
+            return -DUPLICATE;
+        }
+        // 2. 自己的分片没有了， 依次扣其他分片
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            result = stringRedisTemplate.execute(SHARD_SCRIPT, Collections.singletonList(stockKey(voucherId, shard)), user);
+            if (result.intValue() == SUCCESS) {
+                return shard;
+            }
+        }
+        // 3. 全都没有了， 把占的位置还回去
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), user);
+        markSoldOut(voucherId);
+        return -SOLD_OUT;
+    }
+
+    // 后面的步骤失败了， 把扣掉的库存和一人一单的位置还回去
+    public void rollback(Long voucherId, Long userId, int shards, int shard) {
+        stringRedisTemplate.opsForValue().increment(stockKey(voucherId, shard));
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home(userId, shards)), userId.toString());
+        // 还回去的这个库存只有本节点知道， 本地标记去掉， 其他节点的标记就不管了
+        soldOut.remove(voucherId);
+    }
+
+    private static int home(Long userId, int shards) {
+        return Math.floorMod(Long.hashCode(userId), shards);
+    }
+
+    private static String stockKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String orderKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
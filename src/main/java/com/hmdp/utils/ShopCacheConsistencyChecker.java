@@ -0,0 +1,233 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.NumberUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import io.lettuce.core.KeyScanCursor;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.api.async.RedisKeyAsyncCommands;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanCursor;
+import org.springframework.data.redis.core.ScanIteration;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 店铺缓存和数据库的一致性抽查： 后台定时用scan取一小批cache:shop:{id}， 和数据库里的数据逐个比较
+ * 结果按 consistent（一致） drift（不一致） orphan（数据库没有了） null-drift（缓存的空值但数据库有） 统计
+ * 开启repair以后会把不一致的修正掉
+ * 每次只查一小批， 批次之间停一下， 重建队列里有任务（说明正忙）就跳过这一轮， 不和正常的请求抢资源
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.consistency.enabled", havingValue = "true")
+public class ShopCacheConsistencyChecker {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheRebuildExecutor rebuildExecutor;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    // 每一轮最多检查多少个key
+    @Value("${hmdp.cache.consistency.sample-size:200}")
+    private int sampleSize;
+
+    // 每一批（一次mget + 一次listByIds）多少个
+    @Value("${hmdp.cache.consistency.batch-size:50}")
+    private int batchSize;
+
+    // 批次之间停多久（毫秒）
+    @Value("${hmdp.cache.consistency.batch-pause:200}")
+    private long batchPause;
+
+    @Value("${hmdp.cache.consistency.repair:false}")
+    private boolean repair;
+
+    // 下一轮从这个游标继续scan， 扫完一遍回到0
+    private long cursorId;
+
+    // 最近一轮的不一致比例
+    private volatile double lastDriftRatio;
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("cache.consistency.drift.ratio", this, c -> c.lastDriftRatio)
+                .tag("prefix", RedisConstants.CACHE_SHOP_KEY)
+                .register(meterRegistry);
+    }
+
+    @Scheduled(initialDelayString = "${hmdp.cache.consistency.interval:60000}", fixedDelayString = "${hmdp.cache.consistency.interval:60000}")
+    public void check() {
+        // 1. 重建队列里有任务， 说明现在正忙， 这一轮先不查
+        if (rebuildExecutor.queueSize() > 0) {
+            return;
+        }
+        // 2. 抽一批key
+        List<Long> ids = sample();
+        int checked = 0;
+        int drift = 0;
+        // 3. 分批比较
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            List<Long> batch = ids.subList(from, Math.min(from + batchSize, ids.size()));
+            checked += batch.size();
+            drift += compare(batch);
+            try {
+                Thread.sleep(batchPause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        lastDriftRatio = checked == 0 ? 0 : (double) drift / checked;
+        if (drift > 0) {
+            log.warn("店铺缓存一致性抽查: 检查{}个, 不一致{}个, 已修复: {}", checked, drift, repair);
+        }
+    }
+
+    // 从上次的游标继续scan， 只要cache:shop:{数字}， 凑够sampleSize或者扫完一遍就停
+    // scan的游标每一轮在自己的连接上打开、用完就关， 两轮之间只记下游标的位置， 不占着连接
+    private List<Long> sample() {
+        List<Long> ids = new ArrayList<>(sampleSize);
+        ScanOptions options = ScanOptions.scanOptions().match(RedisConstants.CACHE_SHOP_KEY + "*").count(batchSize).build();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            try (Cursor<byte[]> keys = new ResumedScanCursor(connection, cursorId, options).open()) {
+                while (ids.size() < sampleSize && keys.hasNext()) {
+                    String suffix = new String(keys.next(), StandardCharsets.UTF_8).substring(RedisConstants.CACHE_SHOP_KEY.length());
+                    if (NumberUtil.isLong(suffix)) {
+                        ids.add(Long.valueOf(suffix));
+                    }
+                }
+                // 扫完一遍了， 下一轮从头开始； 没扫完的话这一页剩下的key这一遍就跳过了， 抽查不要求每个都查到
+                cursorId = keys.hasNext() ? keys.getCursorId() : 0;
+            }
+            return null;
+        });
+        return ids;
+    }
+
+    // 一批id： 一次mget读缓存， 一次listByIds读数据库， 返回不一致的个数
+    private int compare(List<Long> ids) {
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands()
+                .mGet(ids.stream().map(id -> (RedisConstants.CACHE_SHOP_KEY + id).getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new)));
+        Map<Long, Shop> dbShops = shopService.listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+        int drift = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            byte[] value = values == null ? null : values.get(i);
+            // 扫到以后又被删了
+            if (value == null) {
+                continue;
+            }
+            String key = RedisConstants.CACHE_SHOP_KEY + ids.get(i);
+            Shop dbShop = dbShops.get(ids.get(i));
+            String result;
+            if (value.length == 0) {
+                result = dbShop == null ? "consistent" : "null-drift";
+            } else if (dbShop == null) {
+                result = "orphan";
+            } else {
+                result = decodesTo(value, dbShop) ? "consistent" : "drift";
+            }
+            record(result);
+            if ("consistent".equals(result)) {
+                continue;
+            }
+            drift++;
+            if (repair) {
+                repair(key, dbShop);
+            }
+        }
+        return drift;
+    }
+
+    // 解析失败（比如还是旧的纯json格式， 没有逻辑过期的外层）也算不一致， 不能让一个key中断整轮抽查
+    private boolean decodesTo(byte[] value, Shop dbShop) {
+        try {
+            return dbShop.equals(CacheCodec.detect(value).decode(value, Shop.class));
+        } catch (Exception e) {
+            log.debug("店铺缓存解析失败: {}", dbShop.getId(), e);
+            return false;
+        }
+    }
+
+    // 修复： 数据库没有就删除， 有就带版本号重写（期间被更新过就不写， 交给正常的失效流程）
+    private void repair(String key, Shop dbShop) {
+        if (dbShop == null) {
+            cacheClient.delete(key);
+            return;
+        }
+        long version = cacheClient.version(key);
+        // 读版本号之前的数据库结果可能已经旧了， 重新查一次
+        Shop latest = shopService.getById(dbShop.getId());
+        if (latest == null) {
+            cacheClient.delete(key);
+            return;
+        }
+        if (cacheClient.setWithLogicalExpire(key, latest,
+                cacheClient.policyOf(RedisConstants.CACHE_SHOP_KEY).getTtl().toMillis(), TimeUnit.MILLISECONDS, version)) {
+            record("repaired");
+        }
+    }
+
+    // 从指定的游标位置开始的scan： spring的connection.scan(ScanOptions)每次都从0开始， 这里用lettuce的scan接着上一轮翻
+    private static class ResumedScanCursor extends ScanCursor<byte[]> {
+
+        private final RedisConnection connection;
+
+        private ResumedScanCursor(RedisConnection connection, long cursorId, ScanOptions options) {
+            super(cursorId, options);
+            this.connection = connection;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected ScanIteration<byte[]> doScan(long cursorId, ScanOptions options) {
+            RedisKeyAsyncCommands<byte[], byte[]> commands = (RedisKeyAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            ScanArgs args = ScanArgs.Builder.matches(options.getPattern()).limit(options.getCount());
+            // redis的游标是无符号的64位整数
+            KeyScanCursor<byte[]> page = LettuceFutures.awaitOrCancel(
+                    commands.scan(io.lettuce.core.ScanCursor.of(Long.toUnsignedString(cursorId)), args), 10, TimeUnit.SECONDS);
+            return new ScanIteration<>(Long.parseUnsignedLong(page.getCursor()), page.getKeys());
+        }
+    }
+
+    private void record(String result) {
+        counters.computeIfAbsent(result, r -> Counter.builder("cache.consistency.checks")
+                .tag("prefix", RedisConstants.CACHE_SHOP_KEY)
+                .tag("result", r)
+                .register(meterRegistry)).increment();
+    }
+}
@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * 启动的时候预热店铺缓存： 按id游标分批读tb_shop， 多线程并行写cache:shop:{id}（逻辑过期）和shop:geo:{typeId}
+ * geo是先写到临时key， 全部成功以后再rename（ShopGeoIndex）， 预热过程中附近的店铺照常能查
+ * 本地的店铺索引（ShopIndex）由ShopIndexLoader构建， 不管开不开预热都会加载
+ * 预热完之前readiness是REFUSING_TRAFFIC， 预热完spring才会切到ACCEPTING_TRAFFIC
+ * 这样redis清空或者切换之后， 重启的节点不会把流量全部打到mysql
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.warm-up", havingValue = "true", matchIfMissing = true)
+public class ShopCacheWarmer implements ApplicationRunner {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ApplicationContext applicationContext;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        // 1. 预热完之前不接流量
+        AvailabilityChangeEvent.publish(applicationContext, ReadinessState.REFUSING_TRAFFIC);
+        long start = System.currentTimeMillis();
+        AtomicLong count = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(RedisConstants.SHOP_WARM_UP_THREADS);
+        // 最多同时有两倍线程数的批次在内存里， 读得比写得快的时候就等一等
+        Semaphore inFlight = new Semaphore(RedisConstants.SHOP_WARM_UP_THREADS * 2);
+        List<Future<?>> futures = new ArrayList<>();
+        // 其他地方已经在重建geo了， 这次就不写geo
+        ShopGeoIndex.Rebuild geoRebuild = shopGeoIndex.beginRebuild();
+        try {
+            // 2. 按id游标分批读id， 不用offset， 越往后也不会变慢， 整行在写缓存的线程里读（读之前先读版本号）
+            long lastId = 0;
+            while (true) {
+                List<Long> chunk = shopService.query()
+                        .select("id")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + RedisConstants.SHOP_WARM_UP_CHUNK)
+                        .list()
+                        .stream().map(Shop::getId).collect(Collectors.toList());
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                lastId = chunk.get(chunk.size() - 1);
+                inFlight.acquire();
+                futures.add(pool.submit(() -> {
+                    try {
+                        writeChunk(chunk, geoRebuild);
+                        long total = count.addAndGet(chunk.size());
+                        log.info("店铺缓存预热中: 已写入{}条, {}条/秒", total, rate(total, start));
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+            // 3. 等所有批次写完， 有一批失败就抛出来
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            if (geoRebuild != null) {
+                geoRebuild.commit();
+            }
+            log.info("店铺缓存预热完成: 共{}条, 耗时{}ms, {}条/秒", count.get(), System.currentTimeMillis() - start, rate(count.get(), start));
+        } catch (Exception e) {
+            if (geoRebuild != null) {
+                geoRebuild.abort();
+            }
+            // 预热失败也不影响启动， 只是前面一段时间的请求会打到数据库
+            log.error("店铺缓存预热失败, 已写入{}条", count.get(), e);
+        } finally {
+            pool.shutdown();
+        }
+        // 4. 这里返回以后spring会发布ACCEPTING_TRAFFIC
+    }
+
+    // 一批店铺： 一次pipeline读版本号， 一次查数据库， 一次pipeline带版本号写缓存， 一次pipeline写geo的临时key
+    // 预热期间被更新过的店铺不会被旧数据覆盖
+    private void writeChunk(List<Long> ids, ShopGeoIndex.Rebuild geoRebuild) {
+        List<Shop> shops = cacheClient.loadBatchWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, ids, shopService::listByIds, Shop::getId,
+                cacheClient.policyOf(RedisConstants.CACHE_SHOP_KEY).getTtl().toMillis(), TimeUnit.MILLISECONDS);
+        if (geoRebuild != null) {
+            geoRebuild.add(shops);
+        }
+    }
+
+    private static long rate(long count, long start) {
+        return count * 1000 / Math.max(1, System.currentTimeMillis() - start);
+    }
+}
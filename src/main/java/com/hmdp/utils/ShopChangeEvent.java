@@ -0,0 +1,19 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 店铺新增或者修改了（事务已经提交）， 本地的店铺索引要跟着更新
+ * remote为true表示是其他节点广播过来的
+ */
+@Data
+@AllArgsConstructor
+public class ShopChangeEvent {
+
+    private Long shopId;
+    // 改动以后数据库里的店铺， null表示已经不存在了
+    private Shop shop;
+    private boolean remote;
+}
@@ -0,0 +1,203 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 维护redis里的shop:geo:{typeId}
+ * 店铺有改动： 从其他类型的key里删掉（类型可能改了）， 再加到自己类型的key里， 一次pipeline
+ * 全量重建： 先写到临时key， 全部写完再rename， 重建过程中附近的店铺照常能查
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex {
+
+    private static final ExecutorService REBUILD_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+    // 重建期间改动过的店铺（包括其他节点改的）， rename以后要重新写一遍， 不然会被临时key里的旧数据覆盖
+    private final Set<Long> changedWhileRebuilding = ConcurrentHashMap.newKeySet();
+
+    @EventListener
+    public void onShopChange(ShopChangeEvent event) {
+        if (rebuilding.get()) {
+            changedWhileRebuilding.add(event.getShopId());
+        }
+        // redis是共享的， 其他节点的改动它自己已经写过了
+        if (!event.isRemote()) {
+            apply(event.getShopId(), event.getShop());
+        }
+    }
+
+    // 写一个店铺的位置， shop为null表示店铺已经删除
+    private void apply(Long shopId, Shop shop) {
+        byte[] member = shopId.toString().getBytes(StandardCharsets.UTF_8);
+        boolean located = shop != null && shop.getTypeId() != null && shop.getX() != null && shop.getY() != null;
+        List<Long> typeIds = typeIds();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            // 1. 不知道原来是哪个类型， 其他类型的key里都删一次
+            for (Long typeId : typeIds) {
+                if (!located || !typeId.equals(shop.getTypeId())) {
+                    connection.zSetCommands().zRem(key(typeId), member);
+                }
+            }
+            // 2. 加到现在的类型里
+            if (located) {
+                connection.geoCommands().geoAdd(key(shop.getTypeId()), new Point(shop.getX(), shop.getY()), member);
+            }
+            return null;
+        });
+    }
+
+    // 开始一次全量重建， 已经有重建在进行就返回null
+    public Rebuild beginRebuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return null;
+        }
+        changedWhileRebuilding.clear();
+        return new Rebuild();
+    }
+
+    public boolean rebuildAsync() {
+        Rebuild rebuild = beginRebuild();
+        if (rebuild == null) {
+            return false;
+        }
+        REBUILD_EXECUTOR.submit(() -> {
+            try {
+                // 按id游标分批读， 每批一次pipeline
+                long start = System.currentTimeMillis();
+                long count = 0;
+                long lastId = 0;
+                while (true) {
+                    List<Shop> chunk = shopService.query()
+                            .gt("id", lastId)
+                            .orderByAsc("id")
+                            .last("LIMIT " + RedisConstants.SHOP_WARM_UP_CHUNK)
+                            .list();
+                    if (chunk.isEmpty()) {
+                        break;
+                    }
+                    lastId = chunk.get(chunk.size() - 1).getId();
+                    rebuild.add(chunk);
+                    count += chunk.size();
+                }
+                rebuild.commit();
+                log.info("店铺geo重建完成: 共{}条, 耗时{}ms", count, System.currentTimeMillis() - start);
+            } catch (Exception e) {
+                rebuild.abort();
+                log.error("店铺geo重建失败", e);
+            }
+        });
+        return true;
+    }
+
+    private List<Long> typeIds() {
+        return shopTypeService.snapshot().getTypes().stream().map(ShopType::getId).collect(Collectors.toList());
+    }
+
+    private static byte[] key(Long typeId) {
+        return (RedisConstants.SHOP_GEO_KEY + typeId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 一次全量重建， add可以多个线程同时调用
+     * 临时key带上随机后缀， 几个节点同时重建也不会写到同一个临时key里
+     */
+    public class Rebuild {
+
+        private final String suffix = ":tmp:" + UUID.fastUUID().toString(true);
+        // 写过临时key的类型
+        private final Set<Long> written = ConcurrentHashMap.newKeySet();
+
+        private byte[] tmpKey(Long typeId) {
+            return (RedisConstants.SHOP_GEO_KEY + typeId + suffix).getBytes(StandardCharsets.UTF_8);
+        }
+
+        public void add(List<Shop> chunk) {
+            Map<Long, Map<byte[], Point>> locations = new HashMap<>();
+            for (Shop shop : chunk) {
+                if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                    locations.computeIfAbsent(shop.getTypeId(), k -> new HashMap<>())
+                            .put(shop.getId().toString().getBytes(StandardCharsets.UTF_8), new Point(shop.getX(), shop.getY()));
+                }
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                locations.forEach((typeId, members) -> connection.geoCommands().geoAdd(tmpKey(typeId), members));
+                return null;
+            });
+            written.addAll(locations.keySet());
+        }
+
+        public void commit() {
+            // 1. 临时key替换正式的key， 已经没有店铺的类型直接删掉
+            Set<Long> typeIds = new HashSet<>(typeIds());
+            typeIds.addAll(written);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long typeId : typeIds) {
+                    if (written.contains(typeId)) {
+                        connection.keyCommands().rename(tmpKey(typeId), key(typeId));
+                    } else {
+                        connection.keyCommands().del(key(typeId));
+                    }
+                }
+                return null;
+            });
+            // 2. 重建期间改动过的店铺重新写一遍
+            rebuilding.set(false);
+            List<Long> changed = new ArrayList<>(changedWhileRebuilding);
+            changedWhileRebuilding.clear();
+            if (!changed.isEmpty()) {
+                Map<Long, Shop> shops = shopService.listByIds(changed).stream()
+                        .collect(Collectors.toMap(Shop::getId, Function.identity()));
+                changed.forEach(id -> apply(id, shops.get(id)));
+            }
+        }
+
+        // 重建失败， 删掉临时key， 正式的key不动
+        public void abort() {
+            try {
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    written.forEach(typeId -> connection.keyCommands().del(tmpKey(typeId)));
+                    return null;
+                });
+            } finally {
+                changedWhileRebuilding.clear();
+                rebuilding.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+
+/**
+ * 店铺的本地索引（比如附近的店铺）， 启动的时候ShopIndexLoader按tb_shop逐个put， 之后店铺有改动再逐个更新
+ * 预热完成之前不能用， 查询的时候要退回到原来的方式
+ */
+public interface ShopIndex {
+
+    void put(Shop shop);
+
+    void remove(Long shopId);
+
+    // 加载完成， 所有店铺都已经put过了
+    void markReady();
+}
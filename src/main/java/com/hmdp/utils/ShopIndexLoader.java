@@ -0,0 +1,56 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+/**
+ * 启动的时候构建本地的店铺索引（附近的店铺、按名字搜索、排序列表）
+ * 和缓存预热（hmdp.cache.warm-up）无关， 每次启动都会加载， 否则关掉预热以后索引一直不可用， 全部退回到redis和mysql
+ * 按id游标分批读tb_shop， 全部put完以后才标记为可用， 失败了就一直用原来的查询方式
+ */
+@Slf4j
+@Component
+public class ShopIndexLoader implements ApplicationRunner {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private List<ShopIndex> shopIndexes;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        long start = System.currentTimeMillis();
+        long count = 0;
+        try {
+            long lastId = 0;
+            while (true) {
+                List<Shop> chunk = shopService.query()
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + RedisConstants.SHOP_WARM_UP_CHUNK)
+                        .list();
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                lastId = chunk.get(chunk.size() - 1).getId();
+                for (Shop shop : chunk) {
+                    shopIndexes.forEach(shopIndex -> shopIndex.put(shop));
+                }
+                count += chunk.size();
+            }
+            shopIndexes.forEach(ShopIndex::markReady);
+            log.info("店铺索引加载完成: 共{}条, 耗时{}ms", count, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            // 加载失败也不影响启动， 查询会退回到redis和数据库
+            log.error("店铺索引加载失败, 已加载{}条", count, e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.service.IShopService;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 店铺改动以后同步所有节点的本地店铺索引
+ * 本节点的改动： 直接更新本地索引， 再广播店铺id给其他节点
+ * 其他节点的改动： 按店铺id查一次数据库， 再更新本地索引
+ */
+@Component
+public class ShopIndexSync {
+
+    // 本节点的标识， 收到自己发的消息就跳过
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    @Resource
+    private List<ShopIndex> shopIndexes;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private ApplicationEventPublisher applicationEventPublisher;
+
+    @PostConstruct
+    public void subscribe() {
+        // 消息格式： 节点标识:店铺id
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.indexOf(':');
+            if (index < 0 || NODE_ID.equals(body.substring(0, index))) {
+                return;
+            }
+            Long shopId = Long.valueOf(body.substring(index + 1));
+            applicationEventPublisher.publishEvent(new ShopChangeEvent(shopId, shopService.getById(shopId), true));
+        }, new ChannelTopic(RedisConstants.SHOP_CHANGE_CHANNEL));
+    }
+
+    @EventListener
+    public void onShopChange(ShopChangeEvent event) {
+        // 1. 更新本地索引
+        for (ShopIndex shopIndex : shopIndexes) {
+            if (event.getShop() == null) {
+                shopIndex.remove(event.getShopId());
+            } else {
+                shopIndex.put(event.getShop());
+            }
+        }
+        // 2. 本节点的改动， 广播给其他节点
+        if (!event.isRemote()) {
+            stringRedisTemplate.convertAndSend(RedisConstants.SHOP_CHANGE_CHANNEL, NODE_ID + ":" + event.getShopId());
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按类型查店铺的几种排序（评分最高、销量最高、最便宜、评论最多）
+ * 每个类型每种排序一个排好序的id数组， 分页直接按下标取， 不用每次都去数据库filesort
+ * 加载完（或者第一次查询）的时候整体排一次序， 之后店铺有改动， 每种排序二分查找删掉旧的位置、插入新的位置
+ */
+@Component
+public class ShopListingIndex implements ShopIndex {
+
+    public enum Sort {
+        SCORE("score", "score", true),
+        SOLD("sold", "sold", true),
+        PRICE("price", "avg_price", false),
+        COMMENTS("comments", "comments", true);
+
+        private final String param;
+        // 索引还没建好， 查数据库的时候用的字段
+        private final String column;
+        // 是不是从大到小
+        private final boolean desc;
+
+        Sort(String param, String column, boolean desc) {
+            this.param = param;
+            this.column = column;
+            this.desc = desc;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public boolean isDesc() {
+            return desc;
+        }
+
+        // 请求参数转成排序， 不支持的返回null
+        public static Sort of(String param) {
+            for (Sort sort : values()) {
+                if (sort.param.equalsIgnoreCase(param)) {
+                    return sort;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Map<Long, TypeIndex> types = new ConcurrentHashMap<>();
+    // 店铺id -> 类型， 店铺换了类型要从原来的类型里删掉
+    private final Map<Long, Long> typeOfShop = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+
+    @Override
+    public void put(Shop shop) {
+        if (shop.getTypeId() == null) {
+            remove(shop.getId());
+            return;
+        }
+        Long oldType = typeOfShop.put(shop.getId(), shop.getTypeId());
+        if (oldType != null && !oldType.equals(shop.getTypeId())) {
+            types.get(oldType).remove(shop.getId());
+        }
+        // 按Sort的顺序存字段， 没有价格的排在最便宜的最后面
+        long[] values = new long[Sort.values().length];
+        values[Sort.SCORE.ordinal()] = shop.getScore() == null ? 0 : shop.getScore();
+        values[Sort.SOLD.ordinal()] = shop.getSold() == null ? 0 : shop.getSold();
+        values[Sort.PRICE.ordinal()] = shop.getAvgPrice() == null ? Long.MAX_VALUE : shop.getAvgPrice();
+        values[Sort.COMMENTS.ordinal()] = shop.getComments() == null ? 0 : shop.getComments();
+        types.computeIfAbsent(shop.getTypeId(), k -> new TypeIndex()).put(shop.getId(), values);
+    }
+
+    @Override
+    public void remove(Long shopId) {
+        Long typeId = typeOfShop.remove(shopId);
+        if (typeId != null) {
+            types.get(typeId).remove(shopId);
+        }
+    }
+
+    // 加载完了， 所有类型一次排好序， 之后的改动逐个更新
+    @Override
+    public void markReady() {
+        types.values().forEach(TypeIndex::sorted);
+        ready = true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    // 按页码查， 跳过from个， 最多返回size个
+    public List<Long> search(Long typeId, Sort sort, int from, int size) {
+        TypeIndex typeIndex = types.get(typeId);
+        if (typeIndex == null) {
+            return Collections.emptyList();
+        }
+        Sorted sorted = typeIndex.sorted()[sort.ordinal()];
+        return sorted.page(from, size);
+    }
+
+    // 按游标查， 游标为空是第一页， 下一页的游标放到nextCursor[0]里（没有下一页了是null）， 游标不对返回null
+    public List<Long> search(Long typeId, Sort sort, String cursor, int size, String[] nextCursor) {
+        long[] last = null;
+        if (cursor != null && !cursor.isEmpty()) {
+            last = decode(cursor, sort);
+            if (last == null) {
+                return null;
+            }
+        }
+        TypeIndex typeIndex = types.get(typeId);
+        if (typeIndex == null) {
+            return Collections.emptyList();
+        }
+        Sorted sorted = typeIndex.sorted()[sort.ordinal()];
+        int from = last == null ? 0 : sorted.after(last[0], last[1]);
+        List<Long> ids = sorted.page(from, size);
+        int end = from + ids.size();
+        nextCursor[0] = end < sorted.ids.length ? encode(sort, sorted.keys[end - 1], sorted.ids[end - 1]) : null;
+        return ids;
+    }
+
+    // 游标： 排序、上一页最后一个店铺的排序值和id
+    private static String encode(Sort sort, long key, long id) {
+        String raw = sort.param + "," + key + "," + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long[] decode(String cursor, Sort sort) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(",");
+            if (parts.length != 3 || !sort.param.equals(parts[0])) {
+                return null;
+            }
+            return new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static class TypeIndex {
+        private final Map<Long, long[]> shops = new ConcurrentHashMap<>();
+        // 还没排过序是null， 排好以后每次改动换成新的数组， 读的时候不加锁
+        private volatile Sorted[] sorted;
+
+        private synchronized void put(Long id, long[] values) {
+            long[] old = shops.put(id, values);
+            Sorted[] current = sorted;
+            if (current == null) {
+                return;
+            }
+            Sorted[] updated = new Sorted[current.length];
+            for (Sort sort : Sort.values()) {
+                Sorted s = current[sort.ordinal()];
+                if (old != null) {
+                    s = s.without(key(old, sort), id);
+                }
+                updated[sort.ordinal()] = s.with(key(values, sort), id);
+            }
+            sorted = updated;
+        }
+
+        private synchronized void remove(Long id) {
+            long[] old = shops.remove(id);
+            Sorted[] current = sorted;
+            if (old == null || current == null) {
+                return;
+            }
+            Sorted[] updated = new Sorted[current.length];
+            for (Sort sort : Sort.values()) {
+                updated[sort.ordinal()] = current[sort.ordinal()].without(key(old, sort), id);
+            }
+            sorted = updated;
+        }
+
+        private Sorted[] sorted() {
+            Sorted[] current = sorted;
+            if (current != null) {
+                return current;
+            }
+            synchronized (this) {
+                if (sorted == null) {
+                    // 先按id排好， 每种排序再按(排序值, id)排； put和remove也要拿这个锁， 排序期间shops不会变
+                    long[] ids = shops.keySet().stream().mapToLong(Long::longValue).toArray();
+                    long[][] values = new long[ids.length][];
+                    Arrays.sort(ids);
+                    for (int i = 0; i < ids.length; i++) {
+                        values[i] = shops.get(ids[i]);
+                    }
+                    Sorted[] all = new Sorted[Sort.values().length];
+                    for (Sort sort : Sort.values()) {
+                        all[sort.ordinal()] = Sorted.build(ids, values, sort);
+                    }
+                    sorted = all;
+                }
+                return sorted;
+            }
+        }
+    }
+
+    // 从大到小的字段存的是相反数， 统一按从小到大排
+    private static long key(long[] values, Sort sort) {
+        long value = values[sort.ordinal()];
+        return sort.desc ? -value : value;
+    }
+
+    // 一种排序： 按(排序值, id)从小到大， 建好以后不再修改
+    private static class Sorted {
+        private final long[] keys;
+        private final long[] ids;
+
+        private Sorted(long[] keys, long[] ids) {
+            this.keys = keys;
+            this.ids = ids;
+        }
+
+        // ids已经从小到大排好了， 排序值换成它在所有不同的值里的名次， 和下标拼成一个long， 直接排long数组
+        private static Sorted build(long[] ids, long[][] values, Sort sort) {
+            int n = ids.length;
+            long[] rawKeys = new long[n];
+            for (int i = 0; i < n; i++) {
+                rawKeys[i] = key(values[i], sort);
+            }
+            long[] distinct = rawKeys.clone();
+            Arrays.sort(distinct);
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                if (m == 0 || distinct[m - 1] != distinct[i]) {
+                    distinct[m++] = distinct[i];
+                }
+            }
+            long[] packed = new long[n];
+            for (int i = 0; i < n; i++) {
+                packed[i] = ((long) Arrays.binarySearch(distinct, 0, m, rawKeys[i]) << 32) | i;
+            }
+            Arrays.sort(packed);
+            long[] keys = new long[n];
+            long[] sortedIds = new long[n];
+            for (int j = 0; j < n; j++) {
+                int i = (int) (packed[j] & 0xFFFFFFFFL);
+                keys[j] = rawKeys[i];
+                sortedIds[j] = ids[i];
+            }
+            return new Sorted(keys, sortedIds);
+        }
+
+        private Sorted with(long key, long id) {
+            int i = after(key, id);
+            int n = ids.length;
+            long[] newKeys = new long[n + 1];
+            long[] newIds = new long[n + 1];
+            System.arraycopy(keys, 0, newKeys, 0, i);
+            System.arraycopy(ids, 0, newIds, 0, i);
+            newKeys[i] = key;
+            newIds[i] = id;
+            System.arraycopy(keys, i, newKeys, i + 1, n - i);
+            System.arraycopy(ids, i, newIds, i + 1, n - i);
+            return new Sorted(newKeys, newIds);
+        }
+
+        private Sorted without(long key, long id) {
+            int i = after(key, id) - 1;
+            if (i < 0 || keys[i] != key || ids[i] != id) {
+                return this;
+            }
+            int n = ids.length;
+            long[] newKeys = new long[n - 1];
+            long[] newIds = new long[n - 1];
+            System.arraycopy(keys, 0, newKeys, 0, i);
+            System.arraycopy(ids, 0, newIds, 0, i);
+            System.arraycopy(keys, i + 1, newKeys, i, n - i - 1);
+            System.arraycopy(ids, i + 1, newIds, i, n - i - 1);
+            return new Sorted(newKeys, newIds);
+        }
+
+        // 排在(key, id)后面的第一个位置
+        private int after(long key, long id) {
+            int low = 0, high = ids.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] < key || (keys[mid] == key && ids[mid] <= id)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private List<Long> page(int from, int size) {
+            int end = Math.min(ids.length, from + size);
+            List<Long> page = new ArrayList<>(Math.max(0, end - from));
+            for (int i = from; i < end; i++) {
+                page.add(ids[i]);
+            }
+            return page;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.entity.Shop;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 店铺名称的倒排索引： 名称去掉空格和标点、转小写以后， 每个字和每两个相邻的字都是一个词
+ * 查询的时候取关键字所有相邻两个字的倒排列表求交集， 再确认名称里确实包含关键字（和原来的like '%name%'结果一样）
+ * 排序： 名称完全一样 > 名称开头 > 名称中间， 同一级按评分、销量从高到低
+ * 排好序的结果按关键字缓存一小会儿， 翻页的时候直接二分找位置； 店铺有改动版本号加1， 之前缓存的结果都不用了
+ */
+@Component
+public class ShopNameIndex implements ShopIndex {
+
+    // 排序： 匹配程度、评分、销量从高到低， 最后按id， 保证顺序是确定的
+    private static final Comparator<Match> RANK = Comparator.comparingInt((Match m) -> -m.quality)
+            .thenComparingInt(m -> -m.score)
+            .thenComparingInt(m -> -m.sold)
+            .thenComparingLong(m -> m.id);
+
+    // 店铺id -> 名称和排序用的字段
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    // 词 -> 店铺id
+    private final Map<String, Set<Long>> postings = new ConcurrentHashMap<>();
+    // 有改动就加1
+    private final AtomicLong version = new AtomicLong();
+    // 规范化以后的关键字 -> 排好序的结果
+    private final LRUCache<String, Ranked> ranked = CacheUtil.newLRUCache(SystemConstants.NAME_SEARCH_CACHE_MAX, SystemConstants.NAME_SEARCH_CACHE_TTL);
+
+    private volatile boolean ready;
+
+    @Override
+    public void put(Shop shop) {
+        remove(shop.getId());
+        String name = normalize(shop.getName());
+        if (name.isEmpty()) {
+            return;
+        }
+        Entry entry = new Entry(name,
+                shop.getScore() == null ? 0 : shop.getScore(),
+                shop.getSold() == null ? 0 : shop.getSold());
+        entries.put(shop.getId(), entry);
+        // 在compute里加， 和remove删空列表不会冲突
+        for (String gram : grams(name)) {
+            postings.compute(gram, (k, ids) -> {
+                Set<Long> set = ids == null ? ConcurrentHashMap.newKeySet() : ids;
+                set.add(shop.getId());
+                return set;
+            });
+        }
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void remove(Long shopId) {
+        Entry old = entries.remove(shopId);
+        if (old == null) {
+            return;
+        }
+        // 删空了的列表也去掉
+        for (String gram : grams(old.name)) {
+            postings.computeIfPresent(gram, (k, ids) -> {
+                ids.remove(shopId);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void markReady() {
+        ready = true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    // 按页码查， 跳过from个， 最多返回size个
+    public List<Long> search(String keyword, int from, int size) {
+        List<Match> matches = matches(keyword);
+        List<Long> ids = new ArrayList<>(size);
+        for (int i = from; i < Math.min(matches.size(), from + size); i++) {
+            ids.add(matches.get(i).id);
+        }
+        return ids;
+    }
+
+    // 按游标查， 游标为空是第一页， 下一页的游标放到nextCursor[0]里（没有下一页了是null）， 游标不对返回null
+    public List<Long> search(String keyword, String cursor, int size, String[] nextCursor) {
+        List<Match> matches = matches(keyword);
+        int from = 0;
+        if (cursor != null && !cursor.isEmpty()) {
+            Match last = decode(cursor);
+            if (last == null) {
+                return null;
+            }
+            // 上一页的最后一个店铺可能已经改了或者删了， 二分找到它应该在的位置
+            int index = Collections.binarySearch(matches, last, RANK);
+            from = index >= 0 ? index + 1 : -index - 1;
+        }
+        int end = Math.min(matches.size(), from + size);
+        List<Long> ids = new ArrayList<>(Math.max(0, end - from));
+        for (int i = from; i < end; i++) {
+            ids.add(matches.get(i).id);
+        }
+        nextCursor[0] = end < matches.size() ? encode(matches.get(end - 1)) : null;
+        return ids;
+    }
+
+    // 所有包含关键字的店铺， 排好序； 缓存的结果版本号对得上就直接用
+    private List<Match> matches(String keyword) {
+        String query = normalize(keyword);
+        if (query.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 先读版本号再查， 查的期间有改动的话存进去的版本号就是旧的， 下次不会用
+        long v = version.get();
+        Ranked cached = ranked.get(query, false);
+        if (cached != null && cached.version == v) {
+            return cached.matches;
+        }
+        List<Match> matches = rank(query);
+        ranked.put(query, new Ranked(v, matches));
+        return matches;
+    }
+
+    private List<Match> rank(String query) {
+        // 1. 倒排列表求交集， 从最短的开始
+        List<Set<Long>> lists = new ArrayList<>();
+        for (String gram : queryGrams(query)) {
+            Set<Long> ids = postings.get(gram);
+            if (ids == null || ids.isEmpty()) {
+                return Collections.emptyList();
+            }
+            lists.add(ids);
+        }
+        lists.sort(Comparator.comparingInt(Set::size));
+        List<Match> matches = new ArrayList<>();
+        candidates:
+        for (Long id : lists.get(0)) {
+            for (int i = 1; i < lists.size(); i++) {
+                if (!lists.get(i).contains(id)) {
+                    continue candidates;
+                }
+            }
+            // 2. 每两个字都有不代表连在一起， 确认一下
+            Entry entry = entries.get(id);
+            if (entry == null) {
+                continue;
+            }
+            int position = entry.name.indexOf(query);
+            if (position < 0) {
+                continue;
+            }
+            int quality = entry.name.length() == query.length() ? 3 : position == 0 ? 2 : 1;
+            matches.add(new Match(id, quality, entry.score, entry.sold));
+        }
+        // 3. 排序
+        matches.sort(RANK);
+        return matches;
+    }
+
+    // 转小写， 只留文字和数字
+    private static String normalize(String s) {
+        if (s == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        s.codePoints()
+                .filter(Character::isLetterOrDigit)
+                .map(Character::toLowerCase)
+                .forEach(sb::appendCodePoint);
+        return sb.toString();
+    }
+
+    // 名称的词： 每个字和每两个相邻的字
+    private static Set<String> grams(String name) {
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i < name.length(); i++) {
+            grams.add(name.substring(i, i + 1));
+            if (i + 1 < name.length()) {
+                grams.add(name.substring(i, i + 2));
+            }
+        }
+        return grams;
+    }
+
+    // 关键字的词： 一个字就用这个字， 否则用每两个相邻的字
+    private static Set<String> queryGrams(String query) {
+        if (query.length() == 1) {
+            return Collections.singleton(query);
+        }
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i + 1 < query.length(); i++) {
+            grams.add(query.substring(i, i + 2));
+        }
+        return grams;
+    }
+
+    private static String encode(Match m) {
+        String raw = m.quality + "," + m.score + "," + m.sold + "," + m.id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Match decode(String cursor) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(",");
+            if (parts.length != 4) {
+                return null;
+            }
+            return new Match(Long.parseLong(parts[3]), Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static class Entry {
+        private final String name;
+        private final int score;
+        private final int sold;
+
+        private Entry(String name, int score, int sold) {
+            this.name = name;
+            this.score = score;
+            this.sold = sold;
+        }
+    }
+
+    private static class Ranked {
+        private final long version;
+        private final List<Match> matches;
+
+        private Ranked(long version, List<Match> matches) {
+            this.version = version;
+            this.matches = matches;
+        }
+    }
+
+    private static class Match {
+        private final long id;
+        // 3: 名称完全一样 2: 名称开头 1: 名称中间
+        private final int quality;
+        private final int score;
+        private final int sold;
+
+        private Match(long id, int quality, int score, int sold) {
+            this.id = id;
+            this.quality = quality;
+            this.score = score;
+            this.sold = sold;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 附近的店铺： 每个店铺类型一个网格索引， 每个格子里的店铺的经纬度存在double数组里
+ * 查询的时候只算圆覆盖到的那几个格子里的店铺， 按距离排好序直接分页， 不用每一页都去redis把前面的页再查一遍
+ * 店铺有改动只复制它所在的那一个格子， 不会整个类型重建
+ * 距离的算法和redis的GEO一样， 结果可以和redis互相替代
+ */
+@Component
+public class ShopSpatialIndex implements ShopIndex {
+
+    // 格子的边长（度）， 纬度0.05度大约5.5公里， 5公里的半径一般只要查3x3个格子
+    private static final double CELL = 0.05;
+    // 和redis的GEO用同一个地球半径
+    private static final double EARTH_RADIUS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS;
+
+    private final Map<Long, TypeIndex> types = new ConcurrentHashMap<>();
+    // 店铺id -> 类型， 店铺换了类型要从原来的类型里删掉
+    private final Map<Long, Long> typeOfShop = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+
+    @Data
+    @AllArgsConstructor
+    public static class Hit {
+        private Long id;
+        // 距离（米）
+        private Double distance;
+    }
+
+    @Override
+    public void put(Shop shop) {
+        if (shop.getX() == null || shop.getY() == null || shop.getTypeId() == null) {
+            remove(shop.getId());
+            return;
+        }
+        Long oldType = typeOfShop.put(shop.getId(), shop.getTypeId());
+        if (oldType != null && !oldType.equals(shop.getTypeId())) {
+            types.get(oldType).remove(shop.getId());
+        }
+        types.computeIfAbsent(shop.getTypeId(), k -> new TypeIndex()).put(shop.getId(), shop.getX(), shop.getY());
+    }
+
+    @Override
+    public void remove(Long shopId) {
+        Long typeId = typeOfShop.remove(shopId);
+        if (typeId != null) {
+            types.get(typeId).remove(shopId);
+        }
+    }
+
+    // 加载完了， 所有类型的网格一次建好， 之后的改动逐个更新
+    @Override
+    public void markReady() {
+        types.values().forEach(TypeIndex::cells);
+        ready = true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    // 某个类型在(x, y)周围radius米以内的店铺， 按距离从近到远， 跳过from个， 最多返回size个
+    public List<Hit> search(Long typeId, double x, double y, double radius, int from, int size) {
+        TypeIndex typeIndex = types.get(typeId);
+        if (typeIndex == null) {
+            return Collections.emptyList();
+        }
+        Map<Long, Cell> cells = typeIndex.cells();
+        // 1. 圆的外接矩形覆盖到的格子
+        double dy = radius / METERS_PER_DEGREE;
+        double dx = radius / (METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(y)), 1e-6));
+        int minCx = cell(x - dx), maxCx = cell(x + dx);
+        int minCy = cell(y - dy), maxCy = cell(y + dy);
+        // 2. 算格子里每个店铺的距离， 在半径以内的留下来
+        // 排序用的key： 高位是距离（厘米）， 低31位是第几个候选， 这样直接排long数组就行
+        long[] keys = new long[16];
+        long[] ids = new long[16];
+        double[] distances = new double[16];
+        int count = 0;
+        for (int cx = minCx; cx <= maxCx; cx++) {
+            for (int cy = minCy; cy <= maxCy; cy++) {
+                Cell cell = cells.get(cellKey(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.ids.length; i++) {
+                    double distance = distance(x, y, cell.xs[i], cell.ys[i]);
+                    if (distance > radius) {
+                        continue;
+                    }
+                    if (count == keys.length) {
+                        keys = Arrays.copyOf(keys, count * 2);
+                        ids = Arrays.copyOf(ids, count * 2);
+                        distances = Arrays.copyOf(distances, count * 2);
+                    }
+                    ids[count] = cell.ids[i];
+                    distances[count] = distance;
+                    keys[count] = (Math.round(distance * 100) << 31) | count;
+                    count++;
+                }
+            }
+        }
+        if (count <= from) {
+            return Collections.emptyList();
+        }
+        // 3. 按距离排序， 分页
+        Arrays.sort(keys, 0, count);
+        int end = Math.min(count, from + size);
+        List<Hit> hits = new ArrayList<>(end - from);
+        for (int k = from; k < end; k++) {
+            int c = (int) (keys[k] & Integer.MAX_VALUE);
+            hits.add(new Hit(ids[c], distances[c]));
+        }
+        return hits;
+    }
+
+    private static int cell(double degree) {
+        return (int) Math.floor(degree / CELL);
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    // 球面距离（米）， 和redis的geohashGetDistance一样
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2.0 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    // 一个类型的店铺： 加载期间只记points， 第一次查询（或者加载完）的时候一次建好所有格子
+    // 建好以后每次改动只复制店铺所在的格子， 读的时候不加锁
+    private static class TypeIndex {
+        private final Map<Long, double[]> points = new ConcurrentHashMap<>();
+        private volatile Map<Long, Cell> cells;
+
+        private synchronized void put(Long id, double x, double y) {
+            double[] old = points.put(id, new double[]{x, y});
+            if (cells == null) {
+                return;
+            }
+            // 先从原来的格子删掉再加到新的格子， 这中间的查询最多漏掉这一个店铺， 不会重复
+            if (old != null) {
+                removeFromCell(id, old);
+            }
+            long key = cellKey(cell(x), cell(y));
+            Cell cell = cells.get(key);
+            cells.put(key, cell == null ? new Cell(new long[]{id}, new double[]{x}, new double[]{y}) : cell.with(id, x, y));
+        }
+
+        private synchronized void remove(Long id) {
+            double[] old = points.remove(id);
+            if (old != null && cells != null) {
+                removeFromCell(id, old);
+            }
+        }
+
+        private void removeFromCell(Long id, double[] point) {
+            long key = cellKey(cell(point[0]), cell(point[1]));
+            Cell cell = cells.get(key);
+            if (cell == null) {
+                return;
+            }
+            Cell rest = cell.without(id);
+            if (rest.ids.length == 0) {
+                cells.remove(key);
+            } else {
+                cells.put(key, rest);
+            }
+        }
+
+        private Map<Long, Cell> cells() {
+            Map<Long, Cell> current = cells;
+            if (current != null) {
+                return current;
+            }
+            synchronized (this) {
+                if (cells == null) {
+                    cells = build(points);
+                }
+                return cells;
+            }
+        }
+
+        // 两遍： 先数每个格子有几个店铺， 再按格子填数组， 不用排序
+        private static Map<Long, Cell> build(Map<Long, double[]> points) {
+            Map<Long, int[]> counts = new HashMap<>();
+            points.values().forEach(point -> counts.computeIfAbsent(cellKey(cell(point[0]), cell(point[1])), k -> new int[1])[0]++);
+            Map<Long, Cell> built = new ConcurrentHashMap<>(counts.size() * 2);
+            counts.forEach((key, count) -> built.put(key, new Cell(new long[count[0]], new double[count[0]], new double[count[0]])));
+            Map<Long, int[]> filled = new HashMap<>(counts.size() * 2);
+            points.forEach((id, point) -> {
+                long key = cellKey(cell(point[0]), cell(point[1]));
+                Cell cell = built.get(key);
+                int i = filled.computeIfAbsent(key, k -> new int[1])[0]++;
+                cell.ids[i] = id;
+                cell.xs[i] = point[0];
+                cell.ys[i] = point[1];
+            });
+            return built;
+        }
+    }
+
+    // 一个格子里的店铺， 建好以后不再修改， 改动的时候复制一份新的
+    private static class Cell {
+        private final long[] ids;
+        private final double[] xs;
+        private final double[] ys;
+
+        private Cell(long[] ids, double[] xs, double[] ys) {
+            this.ids = ids;
+            this.xs = xs;
+            this.ys = ys;
+        }
+
+        private Cell with(long id, double x, double y) {
+            int n = ids.length;
+            long[] newIds = Arrays.copyOf(ids, n + 1);
+            double[] newXs = Arrays.copyOf(xs, n + 1);
+            double[] newYs = Arrays.copyOf(ys, n + 1);
+            newIds[n] = id;
+            newXs[n] = x;
+            newYs[n] = y;
+            return new Cell(newIds, newXs, newYs);
+        }
+
+        private Cell without(long id) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == id) {
+                    return new Cell(remove(ids, i), remove(xs, i), remove(ys, i));
+                }
+            }
+            return this;
+        }
+
+        private static long[] remove(long[] array, int i) {
+            long[] result = new long[array.length - 1];
+            System.arraycopy(array, 0, result, 0, i);
+            System.arraycopy(array, i + 1, result, i, array.length - i - 1);
+            return result;
+        }
+
+        private static double[] remove(double[] array, int i) {
+            double[] result = new double[array.length - 1];
+            System.arraycopy(array, 0, result, 0, i);
+            System.arraycopy(array, i + 1, result, i, array.length - i - 1);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * 同一个JVM里， 同一个key同时只有一个线程（leader）去做重建， 其他线程共享它的结果
+ * 这样只有leader会去抢redis的互斥锁， 不会有一堆线程在那里setnx + sleep
+ */
+public class SingleFlight {
+
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    // 同步执行： leader执行loader， 其他线程最多等timeout， 超时就执行onTimeout（比如直接查数据库）， 不让慢查询变成报错
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader, long timeout, TimeUnit unit, Supplier<T> onTimeout) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing == null) {
+            // 1. 自己是leader， 执行loader， 结果交给等待的线程
+            try {
+                T value = loader.get();
+                future.complete(value);
+                return value;
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, future);
+            }
+        }
+        // 2. 已经有线程在重建了， 等它的结果
+        try {
+            return (T) existing.get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (TimeoutException e) {
+            return onTimeout.get();
+        }
+    }
+
+    // 异步执行： 这个key没有在执行的任务才提交， 返回是否提交成功
+    public boolean executeAsync(String key, Runnable task, Executor executor) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(key, future) != null) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                    future.complete(null);
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inFlight.remove(key, future);
+                }
+            });
+        } catch (RuntimeException e) {
+            // 线程池拒绝了， 也要把登记删掉
+            inFlight.remove(key, future);
+            throw e;
+        }
+        return true;
+    }
+
+    // 异步执行并返回结果： 这个key已经在执行了就返回同一个future， 否则提交到executor
+    // 等待的线程不会被占用， executor拒绝了返回失败的future
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> executeAsync(String key, Supplier<T> loader, Executor executor) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return (CompletableFuture<T>) (CompletableFuture<?>) existing;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(loader.get());
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(key, future);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return (CompletableFuture<T>) (CompletableFuture<?>) future;
+    }
+
+    public boolean isInFlight(String key) {
+        return inFlight.containsKey(key);
+    }
+}
@@ -5,4 +5,12 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    public static final long NEARBY_WINDOW_TTL = 30000L;
+    // 最多缓存多少个附近店铺的窗口， 超过了按LRU淘汰
+    public static final int NEARBY_WINDOW_MAX = 1000;
+    // 店铺名称搜索排好序的结果缓存多久（毫秒）、最多缓存多少个关键字， 翻页的时候不用每一页都重新排序
+    public static final long NAME_SEARCH_CACHE_TTL = 10000L;
+    public static final int NAME_SEARCH_CACHE_MAX = 1000;
+    // 店铺类型列表允许客户端和CDN缓存的时间（秒）
+    public static final long SHOP_TYPE_MAX_AGE = 300L;
 }
@@ -3,8 +3,9 @@
 local voucherId = ARGV[1]
 --1.2.用户id
 local userId = ARGV[2]
---1.3 订单id
-local orderId = ARGV[3]
+--1.3 订单id的时间戳， 和当天序列号的key（KEYS[1]）， 抢成功了才自增序列号， 没抢到的请求不用生成id
+local timestamp = ARGV[3]
+local countKey = KEYS[1]
 
 --2.数据key
 --2.1.库存key
@@ -14,7 +15,12 @@ local orderKey = 'seckill:order:' .. voucherId
 
 --3.脚本业务
 --3.1.判断库存是否充足get stockKey
-if (tonumber(redis.call('get', stockKey)) <= 0) then
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil) then
+    --3.2,没有这个秒杀券（还没创建， 或者id是乱传的）， 返回3， 不能当成卖完了
+    return 3
+end
+if (stock <= 0) then
     --3.2,库存不足，返回1
     return 1
 end
@@ -27,7 +33,9 @@ end
 redis.call('incrby', stockKey, -1)
 --3.5.下单（保存用户）sadd orderKey userId
 redis.call('sadd', orderKey, userId)
---3.6 发送消息到队列中 XADD stream.orders * k1 v1 k2 v2。。。 这里orderId传的话直接叫id（与实体类里面对应）
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
---3.7.返回0
+--3.6 生成订单id的序列号 incr countKey， lua的数字拼不出64位的id， 时间戳和序列号分开放到消息里， 消费的时候再拼
+local seq = redis.call('incr', countKey)
+--3.7 发送消息到队列中 XADD stream.orders * k1 v1 k2 v2。。。
+redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'ts', timestamp, 'seq', seq)
+--3.8.返回0
 return 0
\ No newline at end of file
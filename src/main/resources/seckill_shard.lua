@@ -0,0 +1,28 @@
+-- 分片库存的秒杀： 每次只操作一个分片， 分片之间可以在不同的redis节点上
+-- KEYS[1] 库存分片
+-- KEYS[2] 用户所在的订单分片（只有第一次尝试用户自己的分片时才传， 和KEYS[1]在同一个slot）
+-- ARGV[1] 用户id
+-- 返回 0: 扣减成功 1: 这个分片没有库存了 2: 重复下单
+
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local userId = ARGV[1]
+
+-- 1. 用户自己的分片： 先判断是否下过单
+if (orderKey and redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+-- 2. 扣这个分片的库存
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil or stock <= 0) then
+    -- 用户自己的分片没库存了， 也先记上用户， 占住一人一单的位置， 再去其他分片扣， 都没有再删掉
+    if (orderKey) then
+        redis.call('sadd', orderKey, userId)
+    end
+    return 1
+end
+redis.call('incrby', stockKey, -1)
+if (orderKey) then
+    redis.call('sadd', orderKey, userId)
+end
+return 0
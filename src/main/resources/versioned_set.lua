@@ -0,0 +1,13 @@
+-- 带版本号写缓存： 重建期间数据被更新过（版本号变了）， 读到的就是旧数据， 不能写
+-- KEYS[1] 缓存的key， KEYS[2] 版本号的key
+-- ARGV[1] 重建之前读到的版本号， ARGV[2] 缓存的值， ARGV[3] 过期时间（毫秒， 0表示不过期）
+local version = redis.call('get', KEYS[2]) or '0'
+if (version ~= ARGV[1]) then
+    return 0
+end
+if (ARGV[3] == '0') then
+    redis.call('set', KEYS[1], ARGV[2])
+else
+    redis.call('set', KEYS[1], ARGV[2], 'px', ARGV[3])
+end
+return 1
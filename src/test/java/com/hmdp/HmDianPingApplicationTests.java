@@ -4,6 +4,9 @@ import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillStock;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
@@ -13,8 +16,15 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import javax.annotation.Resource;
 import java.sql.Array;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 @SpringBootTest
@@ -29,6 +39,9 @@ class HmDianPingApplicationTests {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillStock seckillStock;
+
     @Test
     void testSaveShop() {
         shopService.cacheShopToRedis(1L, 10L);
@@ -80,4 +93,61 @@ class HmDianPingApplicationTests {
         System.out.println("count" + count);
     }
 
+    // 分片库存的正确性： 用户故意集中在0号分片（逼着走跨分片扣减）， 库存只有需求的一半（逼着走卖完以后的回滚）
+    // 这里只有一个redis， 分片只会多几次往返， 测不出吞吐量随分片数的变化， 只检查卖出的数量和一人一单
+    @Test
+    void testSeckillStockShards() throws InterruptedException {
+        int users = 4000;
+        int stock = users / 2;
+        for (int shards : new int[]{2, 4, 8}) {
+            Long voucherId = 900000000L + shards;
+            seckillStock.init(voucherId, stock, shards);
+            ExecutorService pool = Executors.newFixedThreadPool(64);
+            CountDownLatch latch = new CountDownLatch(users * 2);
+            Map<Long, AtomicInteger> successByUser = new ConcurrentHashMap<>();
+            AtomicInteger crossShard = new AtomicInteger();
+            for (int i = 0; i < users * 2; i++) {
+                // 每个用户抢两次， 80%的用户的home分片是0
+                int u = i / 2;
+                long userId = (long) u * shards + (u % 5 == 0 ? u % shards : 0);
+                pool.submit(() -> {
+                    try {
+                        int shard = seckillStock.deduct(voucherId, userId, shards);
+                        if (shard >= 0) {
+                            successByUser.computeIfAbsent(userId, k -> new AtomicInteger()).incrementAndGet();
+                            if (shard != Math.floorMod(Long.hashCode(userId), shards)) {
+                                crossShard.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            latch.await();
+            pool.shutdown();
+            // 1. 库存正好卖完， 每个用户最多成功一次
+            Assertions.assertEquals(stock, successByUser.size());
+            successByUser.values().forEach(count -> Assertions.assertEquals(1, count.get()));
+            Assertions.assertTrue(crossShard.get() > 0, "没有走到跨分片扣减");
+            for (int i = 0; i < shards; i++) {
+                Assertions.assertEquals("0", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + i + "}"));
+            }
+            // 2. 订单分片里只有抢到的用户（没抢到的已经回滚）， 同一个用户不会出现在两个分片里
+            Set<String> ordered = new HashSet<>();
+            for (int i = 0; i < shards; i++) {
+                Set<String> members = stringRedisTemplate.opsForSet().members(RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + i + "}");
+                if (members != null) {
+                    members.forEach(member -> Assertions.assertTrue(ordered.add(member), "用户" + member + "出现在多个分片里"));
+                }
+            }
+            Assertions.assertEquals(successByUser.keySet().stream().map(String::valueOf).collect(Collectors.toSet()), ordered);
+            Set<String> keys = stringRedisTemplate.keys("seckill:*{" + voucherId + ":*");
+            if (keys != null) {
+                stringRedisTemplate.delete(keys);
+            }
+            stringRedisTemplate.delete(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        }
+    }
+
 }